@@ -2,17 +2,19 @@ package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
 
 
 import ai.certifai.solution.facial_recognition.identification.Prediction;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.PointerScope;
 import org.bytedeco.javacv.Frame;
 import org.bytedeco.javacv.FrameGrabber;
-import org.bytedeco.javacv.OpenCVFrameConverter;
 import org.bytedeco.javacv.OpenCVFrameGrabber;
 import org.bytedeco.opencv.opencv_core.*;
 import org.bytedeco.opencv.opencv_core.Point;
-import org.datavec.image.loader.NativeImageLoader;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_imgproc;
+import org.bytedeco.opencv.global.opencv_objdetect;
+import org.deeplearning4j.nn.graph.ComputationGraph;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.util.ModelSerializer;
-import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.dataset.api.preprocessor.ImagePreProcessingScaler;
 import org.nd4j.linalg.factory.Nd4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,63 +23,104 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
+import java.io.UncheckedIOException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.bytedeco.opencv.global.opencv_imgproc.*;
-import static org.bytedeco.opencv.global.opencv_imgproc.resize;
 
 public class AgeGenderDetection {
     static final Logger logger = LoggerFactory.getLogger(AgeGenderDetection.class);
-    private static final int WIDTH = 1280;
-    private static final int HEIGHT = 720;
+
+    static {
+        // before the first native allocation, the colours below included
+        NativeMemory.configure();
+    }
+
+    // capture resolution, lowered at run time by the LoadShedder when the pipeline falls behind
+    private static final int WIDTH = Integer.getInteger("agegender.capture.width", 1280);
+    private static final int HEIGHT = Integer.getInteger("agegender.capture.height", 720);
     private static final String outputWindowsName = "Age and Gender Detection - DL4J";
-    private static File CNNAgeModel = new File(System.getProperty("user.dir"), "generated-models/AgeDetection.zip");
-    private static File CNNGenderModel = new File(System.getProperty("user.dir"), "generated-models/GenderDetection.zip");
-    private static final String[] AGES = new String[]{"0-4", "6-13", "23-35", "37-45", "47-55", "14-21", "60-"};
+    static File CNNAgeModel = new File(System.getProperty("user.dir"), "generated-models/AgeDetection.zip");
+    static File CNNGenderModel = new File(System.getProperty("user.dir"), "generated-models/GenderDetection.zip");
+    static File CNNMultiTaskModel = new File(System.getProperty("user.dir"), "generated-models/AgeGenderDetection.zip");
+    static final String[] AGES = new String[]{"0-4", "6-13", "23-35", "37-45", "47-55", "14-21", "60-"};
     private static MultiLayerNetwork AgeModel;
     private static MultiLayerNetwork GenderModel;
-    private static final int height = 224;
-    private static final int width = 224;
+    private static ComputationGraph MultiTaskModel;
     private static final int channels = 3;
+    private static final boolean LOAD_UPDATER = Boolean.getBoolean("agegender.loadUpdater");
+    // created outside of the pointer scope of annotate(), which would free them after the first frame
+    private static final Scalar BOX_COLOR = Scalar.RED;
+    private static final Scalar CAPTION_COLOR = new Scalar(255, 255, 255, 2.0);
 
     private static List<Prediction> predictions;
 
 
     private FrameGrabber frameGrabber;
-    private OpenCVFrameConverter.ToMat toMatConverter = new OpenCVFrameConverter.ToMat();
     private volatile boolean running = false;
+    private FramePipeline pipeline;
 
-    private HaarFaceDetector faceDetector = new HaarFaceDetector();
+    private FaceDetector faceDetector = FaceDetector.create();
 
     private AgeModel ageModel = new AgeModel();
 
+    private AgeGenderPredictor predictor;
+    private StartupTimer startupTimer;
+    private PipelineMetrics metrics;
+    private MetricsServer metricsServer;
+
     private JFrame window;
-    private JPanel videoPanel;
+    private VideoPanel videoPanel;
 
     public static void main(String[] args) throws Exception {
-
-        if (new File(CNNAgeModel.toString()).exists()) {
-            logger.info("Load model...");
-            AgeModel = ModelSerializer.restoreMultiLayerNetwork(CNNAgeModel);
-            logger.info("Model found.");
-        } else {
-            logger.info("Model not found.");
+        StartupTimer timer = new StartupTimer();
+
+        // restoring the models, loading the native libraries and opening the camera do not depend on each other
+        ExecutorService startup = Executors.newFixedThreadPool(4);
+        CompletableFuture<Void> nativeLibraries = CompletableFuture.runAsync(
+                () -> timer.time("native libraries", AgeGenderDetection::loadNativeLibraries), startup);
+        // the multi-task model replaces both single-task models when it was trained
+        boolean multiTask = CNNMultiTaskModel.exists();
+        CompletableFuture<ComputationGraph> multiTaskModel = multiTask
+                ? CompletableFuture.supplyAsync(
+                        () -> timer.time("multi-task model restore", () -> restoreMultiTaskModel(CNNMultiTaskModel)), startup)
+                : CompletableFuture.completedFuture(null);
+        CompletableFuture<MultiLayerNetwork> ageModel = multiTask
+                ? CompletableFuture.completedFuture(null)
+                : CompletableFuture.supplyAsync(
+                        () -> timer.time("age model restore", () -> restoreModel(CNNAgeModel)), startup);
+        CompletableFuture<MultiLayerNetwork> genderModel = multiTask
+                ? CompletableFuture.completedFuture(null)
+                : CompletableFuture.supplyAsync(
+                        () -> timer.time("gender model restore", () -> restoreModel(CNNGenderModel)), startup);
+        CompletableFuture<FrameGrabber> frameGrabber = CompletableFuture.supplyAsync(
+                () -> timer.time("camera open", AgeGenderDetection::openFrameGrabber), startup);
+
+        AgeGenderDetection ageGenderDetection = timer.time("window and face detector", AgeGenderDetection::new);
+
+        nativeLibraries.join();
+        MultiTaskModel = multiTaskModel.join();
+        AgeModel = ageModel.join();
+        GenderModel = genderModel.join();
+        if (MultiTaskModel == null && (AgeModel == null || GenderModel == null)) {
+            startup.shutdownNow();
+            throw new IllegalStateException("Age and gender models are required, train them with MultiTaskModel, "
+                    + "or AgeModel and GenderModel, first");
         }
+        // warmed up by the pipeline, on the thread that runs the predictions
+        ageGenderDetection.predictor = newPredictor();
 
-        if (new File(CNNGenderModel.toString()).exists()) {
-            logger.info("Load model...");
-            GenderModel = ModelSerializer.restoreMultiLayerNetwork(CNNGenderModel);
-            logger.info("Model found.");
-        } else {
-            logger.info("Model not found.");
-        }
-
-        AgeGenderDetection ageGenderDetection = new AgeGenderDetection();
+        ageGenderDetection.frameGrabber = frameGrabber.join();
+        ageGenderDetection.startupTimer = timer;
+        ageGenderDetection.startMetrics();
+        startup.shutdown();
 
         logger.info("Starting AgeGenderDetection");
         new Thread(ageGenderDetection::start).start();
@@ -92,12 +135,86 @@ public class AgeGenderDetection {
         } catch (InterruptedException ignored) { }
     }
 
+    /**
+     * Restores a trained model, without its updater state unless -Dagegender.loadUpdater=true as inference never
+     * needs it. The reduced-precision artifact of the model is restored instead when one is selected, see
+     * {@link ModelPrecision}.
+     *
+     * @return the model, or null when it was not trained yet
+     */
+    static MultiLayerNetwork restoreModel(File fp32ModelFile) {
+        File modelFile = ModelPrecision.resolve(fp32ModelFile);
+        if (!modelFile.exists()) {
+            logger.info("Model {} not found.", modelFile);
+            return null;
+        }
+        try {
+            logger.info("Load model {}...", modelFile);
+            return ModelSerializer.restoreMultiLayerNetwork(modelFile, LOAD_UPDATER);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to restore " + modelFile, e);
+        }
+    }
+
+    /**
+     * Restores a trained multi-task model, see {@link #restoreModel(File)}.
+     */
+    static ComputationGraph restoreMultiTaskModel(File fp32ModelFile) {
+        File modelFile = ModelPrecision.resolve(fp32ModelFile);
+        if (!modelFile.exists()) {
+            logger.info("Model {} not found.", modelFile);
+            return null;
+        }
+        try {
+            logger.info("Load model {}...", modelFile);
+            return ModelSerializer.restoreComputationGraph(modelFile, LOAD_UPDATER);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to restore " + modelFile, e);
+        }
+    }
+
+    private static AgeGenderPredictor newPredictor() {
+        AgeGenderPredictor predictor = MultiTaskModel != null
+                ? new AgeGenderPredictor(MultiTaskModel, AgeGenderPredictor.DEFAULT_BATCH_SIZE,
+                        ModelInputSize.read(CNNMultiTaskModel))
+                : new AgeGenderPredictor(AgeModel, GenderModel, AgeGenderPredictor.DEFAULT_BATCH_SIZE,
+                        ModelInputSize.read(CNNAgeModel, CNNGenderModel));
+        predictor.setCache(PredictionCache.ENABLED ? new PredictionCache() : null);
+        return predictor;
+    }
+
+    private static void loadNativeLibraries() {
+        Loader.load(opencv_core.class);
+        Loader.load(opencv_imgproc.class);
+        Loader.load(opencv_objdetect.class);
+        // the first array created initialises the ND4J backend and its native library
+        Nd4j.create(1);
+    }
+
+    private static FrameGrabber openFrameGrabber() {
+        FrameGrabber frameGrabber = new OpenCVFrameGrabber(0);
+
+        //frameGrabber.setFormat("mp4");
+        frameGrabber.setImageWidth(WIDTH);
+        frameGrabber.setImageHeight(HEIGHT);
+
+        logger.debug("Starting frame grabber");
+        try {
+            frameGrabber.start();
+            logger.debug("Started frame grabber with image width-height : {}-{}", frameGrabber.getImageWidth(), frameGrabber.getImageHeight());
+        } catch (FrameGrabber.Exception e) {
+            logger.error("Error when initializing the frame grabber", e);
+            throw new RuntimeException("Unable to start the FrameGrabber", e);
+        }
+        return frameGrabber;
+    }
+
     public AgeGenderDetection() {
         window = new JFrame();
-        videoPanel = new JPanel();
+        videoPanel = new VideoPanel();
 
         window.setLayout(new BorderLayout());
-        window.setSize(new Dimension(1280, 720));
+        window.setSize(new Dimension(WIDTH, HEIGHT));
         window.add(videoPanel, BorderLayout.CENTER);
         window.addWindowListener(new WindowAdapter() {
             @Override
@@ -106,61 +223,80 @@ public class AgeGenderDetection {
             }
         });
     }
+    /**
+     * Starts recording the latencies of every stage, published over JMX and on {@link MetricsServer#DEFAULT_PORT}.
+     */
+    private void startMetrics() {
+        metrics = new PipelineMetrics();
+        metrics.registerMBeans();
+        predictor.setMetrics(metrics);
+        metrics.setPredictionCache(predictor.getCache());
+        try {
+            metricsServer = new MetricsServer(metrics, MetricsServer.DEFAULT_PORT);
+            metricsServer.start();
+        } catch (IOException e) {
+            logger.warn("Unable to serve metrics on port {}", MetricsServer.DEFAULT_PORT, e);
+        }
+    }
+
     private void process() {
         running = true;
-        while (running) {
-            try {
-                // Here we grab frames from our camera
-                final org.bytedeco.javacv.Frame frame = frameGrabber.grab();
-
-                Map<Rect, Mat> detectedFaces = faceDetector.detect(frame);
-                Mat mat = toMatConverter.convert(frame);
-
-                detectedFaces.entrySet().forEach(rectMatEntry -> {
-                    String age = predictAge(rectMatEntry.getValue(), frame);
-                    Gender gender = predictGender(rectMatEntry.getValue(), frame);
-                    String caption = String.format("%s:[%s]",gender, age);
-                    logger.debug("Face's caption : {}", caption);
-
-                    rectangle(mat, new org.bytedeco.opencv.opencv_core.Point(rectMatEntry.getKey().x(), rectMatEntry.getKey().y()),
-                            new org.bytedeco.opencv.opencv_core.Point(rectMatEntry.getKey().width() + rectMatEntry.getKey().x(), rectMatEntry.getKey().height() + rectMatEntry.getKey().y()),
-                            Scalar.RED, 2, CV_AA, 0);
-
-                    int posX = Math.max(rectMatEntry.getKey().x() - 10, 0);
-                    int posY = Math.max(rectMatEntry.getKey().y() - 10, 0);
-                    putText(mat, caption, new Point(posX, posY), CV_FONT_HERSHEY_PLAIN, 1.0,
-                            new Scalar(255, 255, 255, 2.0));
-                });
-
-                // Show the processed mat in UI
-                org.bytedeco.javacv.Frame processedFrame = toMatConverter.convert(mat);
-
-                Graphics graphics = videoPanel.getGraphics();
-                BufferedImage resizedImage = ImageUtils.getResizedBufferedImage(processedFrame, videoPanel);
-                SwingUtilities.invokeLater(() -> {
-                    graphics.drawImage(resizedImage, 0, 0, videoPanel);
-                });
-            } catch (FrameGrabber.Exception e) {
-                logger.error("Error when grabbing the frame", e);
-            } catch (Exception e) {
-                logger.error("Unexpected error occurred while grabbing and processing a frame", e);
+        pipeline = new FramePipeline(frameGrabber, faceDetector, predictor, this::render);
+        if (metrics != null) {
+            pipeline.setMetrics(metrics);
+        }
+        if (startupTimer != null) {
+            pipeline.setStartupTimer(startupTimer);
+        }
+        pipeline.start();
+
+        synchronized (this) {
+            while (running) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    running = false;
+                }
             }
         }
     }
-    public void start() {
-        frameGrabber = new OpenCVFrameGrabber(0);
 
-        //frameGrabber.setFormat("mp4");
-        frameGrabber.setImageWidth(1280);
-        frameGrabber.setImageHeight(720);
+    private void render(Mat mat, Map<Rect, FacePrediction> predictions) {
+        annotate(mat, predictions);
 
-        logger.debug("Starting frame grabber");
-        try {
-            frameGrabber.start();
-            logger.debug("Started frame grabber with image width-height : {}-{}", frameGrabber.getImageWidth(), frameGrabber.getImageHeight());
-        } catch (FrameGrabber.Exception e) {
-            logger.error("Error when initializing the frame grabber", e);
-            throw new RuntimeException("Unable to start the FrameGrabber", e);
+        // Show the processed mat in UI
+        videoPanel.showFrame(mat);
+    }
+
+    /**
+     * Draws the box and caption of every face onto the frame. The points are freed before it returns.
+     */
+    static void annotate(Mat mat, Map<Rect, FacePrediction> predictions) {
+        try (PointerScope scope = new PointerScope()) {
+            predictions.forEach((rect, prediction) -> draw(mat, rect, prediction));
+        }
+    }
+
+    private static void draw(Mat mat, Rect rect, FacePrediction prediction) {
+        String caption = prediction.toString();
+        logger.debug("Face's caption : {}", caption);
+
+        rectangle(mat, new org.bytedeco.opencv.opencv_core.Point(rect.x(), rect.y()),
+                new org.bytedeco.opencv.opencv_core.Point(rect.width() + rect.x(), rect.height() + rect.y()),
+                BOX_COLOR, 2, CV_AA, 0);
+
+        int posX = Math.max(rect.x() - 10, 0);
+        int posY = Math.max(rect.y() - 10, 0);
+        putText(mat, caption, new Point(posX, posY), CV_FONT_HERSHEY_PLAIN, 1.0, CAPTION_COLOR);
+    }
+
+    public void start() {
+        if (frameGrabber == null) {
+            frameGrabber = openFrameGrabber();
+        }
+        if (predictor == null) {
+            predictor = newPredictor();
         }
 
         SwingUtilities.invokeLater(() -> {
@@ -172,7 +308,22 @@ public class AgeGenderDetection {
         logger.debug("Stopped frame grabbing.");
     }
     public void stop() {
-        running = false;
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        if (pipeline == null || pipeline.stop()) {
+            faceDetector.close();
+        } else {
+            // a stage still detecting would use the freed cascade, the process is exiting anyway
+            logger.warn("Face detector left open, the pipeline did not stop");
+        }
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+        if (metrics != null) {
+            metrics.shutdown();
+        }
         try {
             logger.debug("Releasing and stopping FrameGrabber");
             frameGrabber.release();
@@ -186,26 +337,7 @@ public class AgeGenderDetection {
 
     public String predictAge(Mat face, Frame frame) {
         try {
-            resize(face, face, new Size(224, 224));
-
-            NativeImageLoader loader = new NativeImageLoader();
-
-            INDArray ds = null;
-            try {
-                ds = loader.asMatrix(face);
-            } catch (IOException ex) {
-                logger.error(ex.getMessage());
-            }
-
-            ImagePreProcessingScaler scaler = new ImagePreProcessingScaler(0, 1);
-            scaler.transform(ds);
-            System.out.println(java.util.Arrays.toString(ds.shape()));
-            INDArray results = AgeModel.output(ds);
-            INDArray t = Nd4j.argMax(results,1);
-            int c = t.getInt(0);
-
-
-            return AGES[c];
+            return predictor.predict(Collections.singletonList(face)).get(0).getAge();
         } catch (Exception e) {
             logger.error("Error when processing age", e);
         }
@@ -214,32 +346,7 @@ public class AgeGenderDetection {
 
     public AgeGenderDetection.Gender predictGender(Mat face, Frame frame) {
         try {
-            resize(face, face, new Size(224, 224));
-
-            NativeImageLoader loader = new NativeImageLoader();
-
-            INDArray ds = null;
-            try {
-                ds = loader.asMatrix(face);
-            } catch (IOException ex) {
-                logger.error(ex.getMessage());
-            }
-
-            ImagePreProcessingScaler scaler = new ImagePreProcessingScaler(0, 1);
-            scaler.transform(ds);
-            System.out.println(Arrays.toString(ds.shape()));
-            INDArray results = GenderModel.output(ds);
-            double a = results.getDouble(0,0);
-            double b = results.getDouble(0,1);
-            logger.debug("CNN results {},{}", results.getScalar(0,0), results.getScalar(0,1));
-
-            if (a < b) {
-                logger.debug("Male detected");
-                return AgeGenderDetection.Gender.MALE;
-            } else {
-                logger.debug("Female detected");
-                return AgeGenderDetection.Gender.FEMALE;
-            }
+            return predictor.predict(Collections.singletonList(face)).get(0).getGender();
         } catch (Exception e) {
             logger.error("Error when processing gender", e);
         }
@@ -0,0 +1,326 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.bytedeco.opencv.opencv_core.Scalar;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.memory.conf.WorkspaceConfiguration;
+import org.nd4j.linalg.api.memory.enums.AllocationPolicy;
+import org.nd4j.linalg.api.memory.enums.LearningPolicy;
+import org.nd4j.linalg.api.memory.enums.SpillPolicy;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.bytedeco.opencv.global.opencv_core.CV_8UC3;
+
+/**
+ * Runs the age and gender models on all faces of a frame at once. Faces are stacked into a single NCHW
+ * tensor so that each model is invoked once per chunk of faces instead of once per face. With the two-headed
+ * network of {@link MultiTaskModel} both predictions come out of a single forward pass.
+ * <p>
+ * The input tensor is built by a single {@link FacePreprocessor} shared by both models, so instances are not
+ * thread-safe.
+ * <p>
+ * The outputs of the models, and the input cast for reduced-precision models, are allocated in an ND4J workspace
+ * of the calling thread that is sized on the first batch and reused by every later one, rather than as new native
+ * buffers per batch left for the garbage collector.
+ * <p>
+ * With a {@link PredictionCache} faces looking like one predicted recently reuse its prediction and skip inference.
+ */
+public class AgeGenderPredictor {
+
+    private static final Logger logger = LoggerFactory.getLogger(AgeGenderPredictor.class);
+
+    //maximum number of faces sent through a model in a single output() call, larger crowds are chunked
+    public static final int DEFAULT_BATCH_SIZE = Integer.getInteger("agegender.batchSize", 16);
+    public static final int WARMUP_ITERATIONS = Integer.getInteger("agegender.warmupIterations", 3);
+
+    private static final String WORKSPACE_ID = "AGE_GENDER_INFERENCE";
+    // learns its size on the first batch, grows when a larger batch spills out of it
+    private static final WorkspaceConfiguration WORKSPACE_CONFIGURATION = WorkspaceConfiguration.builder()
+            .policyAllocation(AllocationPolicy.STRICT)
+            .policyLearning(LearningPolicy.FIRST_LOOP)
+            .policySpill(SpillPolicy.REALLOCATE)
+            .build();
+
+    private final MultiLayerNetwork ageModel;
+    private final MultiLayerNetwork genderModel;
+    private final ComputationGraph multiTaskModel;
+    //FLOAT, or HALF/BFLOAT16 for the artifacts of PrecisionGate
+    private final DataType dataType;
+    private final int batchSize;
+    private final int inputSize;
+
+    private final FacePreprocessor preprocessor;
+    private final PredictionCache.Hasher hasher = new PredictionCache.Hasher();
+    private PipelineMetrics metrics;
+    private PredictionCache cache;
+
+    public AgeGenderPredictor(MultiLayerNetwork ageModel, MultiLayerNetwork genderModel) {
+        this(ageModel, genderModel, DEFAULT_BATCH_SIZE);
+    }
+
+    public AgeGenderPredictor(MultiLayerNetwork ageModel, MultiLayerNetwork genderModel, int batchSize) {
+        this(ageModel, genderModel, batchSize, ModelInputSize.DEFAULT);
+    }
+
+    /**
+     * @param inputSize side of the square crops both models were trained on, see {@link ModelInputSize}
+     */
+    public AgeGenderPredictor(MultiLayerNetwork ageModel, MultiLayerNetwork genderModel, int batchSize, int inputSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size has to be at least 1, got " + batchSize);
+        }
+        this.ageModel = ageModel;
+        this.genderModel = genderModel;
+        this.multiTaskModel = null;
+        this.dataType = ageModel.params().dataType();
+        this.batchSize = batchSize;
+        this.inputSize = inputSize;
+        this.preprocessor = new FacePreprocessor(batchSize, inputSize, inputSize);
+    }
+
+    public AgeGenderPredictor(ComputationGraph multiTaskModel) {
+        this(multiTaskModel, DEFAULT_BATCH_SIZE);
+    }
+
+    public AgeGenderPredictor(ComputationGraph multiTaskModel, int batchSize) {
+        this(multiTaskModel, batchSize, ModelInputSize.DEFAULT);
+    }
+
+    /**
+     * @param multiTaskModel network with an age output followed by a gender output, as trained by {@link MultiTaskModel}
+     * @param inputSize      side of the square crops the model was trained on, see {@link ModelInputSize}
+     */
+    public AgeGenderPredictor(ComputationGraph multiTaskModel, int batchSize, int inputSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size has to be at least 1, got " + batchSize);
+        }
+        if (multiTaskModel.getNumOutputArrays() != 2) {
+            throw new IllegalArgumentException("Expected an age and a gender output, got "
+                    + multiTaskModel.getNumOutputArrays() + " outputs");
+        }
+        this.ageModel = null;
+        this.genderModel = null;
+        this.multiTaskModel = multiTaskModel;
+        this.dataType = multiTaskModel.params().dataType();
+        this.batchSize = batchSize;
+        this.inputSize = inputSize;
+        this.preprocessor = new FacePreprocessor(batchSize, inputSize, inputSize);
+    }
+
+    /**
+     * Restores the multi-task model when it was trained, the separate age and gender models otherwise.
+     */
+    public static AgeGenderPredictor restore(int batchSize) {
+        if (AgeGenderDetection.CNNMultiTaskModel.exists()) {
+            AgeGenderPredictor predictor = new AgeGenderPredictor(
+                    AgeGenderDetection.restoreMultiTaskModel(AgeGenderDetection.CNNMultiTaskModel), batchSize,
+                    ModelInputSize.read(AgeGenderDetection.CNNMultiTaskModel));
+            predictor.setCache(PredictionCache.ENABLED ? new PredictionCache() : null);
+            return predictor;
+        }
+        MultiLayerNetwork ageModel = AgeGenderDetection.restoreModel(AgeGenderDetection.CNNAgeModel);
+        MultiLayerNetwork genderModel = AgeGenderDetection.restoreModel(AgeGenderDetection.CNNGenderModel);
+        if (ageModel == null || genderModel == null) {
+            throw new IllegalStateException("Age and gender models are required, train them with MultiTaskModel, "
+                    + "or AgeModel and GenderModel, first");
+        }
+        AgeGenderPredictor predictor = new AgeGenderPredictor(ageModel, genderModel, batchSize,
+                ModelInputSize.read(AgeGenderDetection.CNNAgeModel, AgeGenderDetection.CNNGenderModel));
+        predictor.setCache(PredictionCache.ENABLED ? new PredictionCache() : null);
+        return predictor;
+    }
+
+    /**
+     * @return a predictor with its own copy of the networks, to run on another thread, sharing the cache
+     */
+    public AgeGenderPredictor copy() {
+        AgeGenderPredictor copy = multiTaskModel != null
+                ? new AgeGenderPredictor(multiTaskModel.clone(), batchSize, inputSize)
+                : new AgeGenderPredictor(ageModel.clone(), genderModel.clone(), batchSize, inputSize);
+        copy.metrics = metrics;
+        copy.cache = cache;
+        return copy;
+    }
+
+    /**
+     * @param metrics records the preprocessing and inference latencies from now on, null to stop recording
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param cache looks up faces before running the models, null to always run them
+     */
+    public void setCache(PredictionCache cache) {
+        this.cache = cache;
+    }
+
+    public PredictionCache getCache() {
+        return cache;
+    }
+
+    public boolean isMultiTask() {
+        return multiTaskModel != null;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getInputSize() {
+        return inputSize;
+    }
+
+    /**
+     * Runs synthetic faces through the whole prediction path, both for a single face and for a full batch, so that
+     * native initialisation, workspace allocation and JIT compilation happen before the first real frame. The
+     * inference workspace belongs to the calling thread, so it has to be called on the thread that runs the
+     * predictions. The warm-up is not recorded by the {@link PipelineMetrics}.
+     */
+    public void warmUp() {
+        PipelineMetrics recording = metrics;
+        metrics = null;
+        Mat blank = new Mat(inputSize, inputSize, CV_8UC3, new Scalar(128, 128, 128, 0));
+        try {
+            List<Mat> faces = Collections.nCopies(batchSize, blank);
+            // past the cache, which would answer all but the first blank face
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                predictUncached(faces.subList(0, 1));
+                predictUncached(faces);
+            }
+        } finally {
+            blank.release();
+            metrics = recording;
+        }
+    }
+
+    /**
+     * Predicts age and gender for every face detected in a frame.
+     *
+     * @param faces the cropped faces keyed by their location in the frame, as returned by {@link FaceDetector#detect}
+     * @return the predictions keyed by the same rectangles, in the iteration order of {@code faces}
+     */
+    public Map<Rect, FacePrediction> predict(Map<Rect, Mat> faces) {
+        List<Rect> rects = new ArrayList<>(faces.keySet());
+        List<Mat> mats = new ArrayList<>(rects.size());
+        for (Rect rect : rects) {
+            mats.add(faces.get(rect));
+        }
+
+        List<FacePrediction> predictions = predict(mats);
+        Map<Rect, FacePrediction> results = new LinkedHashMap<>();
+        for (int i = 0; i < rects.size(); i++) {
+            results.put(rects.get(i), predictions.get(i));
+        }
+        return results;
+    }
+
+    /**
+     * Predicts age and gender for a list of cropped faces.
+     *
+     * @param faces cropped faces of any size, they are resized to the model input size
+     * @return one prediction per face, in the same order
+     */
+    public List<FacePrediction> predict(List<Mat> faces) {
+        if (cache == null) {
+            return predictUncached(faces);
+        }
+        long[] hashes = new long[faces.size()];
+        FacePrediction[] predictions = new FacePrediction[faces.size()];
+        List<Integer> missed = new ArrayList<>();
+        for (int i = 0; i < faces.size(); i++) {
+            hashes[i] = hasher.hash(faces.get(i));
+            predictions[i] = cache.get(hashes[i]);
+            if (predictions[i] == null) {
+                missed.add(i);
+            }
+        }
+        if (!missed.isEmpty()) {
+            List<Mat> missedFaces = new ArrayList<>(missed.size());
+            for (int i : missed) {
+                missedFaces.add(faces.get(i));
+            }
+            List<FacePrediction> inferred = predictUncached(missedFaces);
+            for (int j = 0; j < missed.size(); j++) {
+                int i = missed.get(j);
+                predictions[i] = inferred.get(j);
+                cache.put(hashes[i], predictions[i]);
+            }
+        }
+        return Arrays.asList(predictions);
+    }
+
+    private List<FacePrediction> predictUncached(List<Mat> faces) {
+        List<FacePrediction> predictions = new ArrayList<>(faces.size());
+        for (int start = 0; start < faces.size(); start += batchSize) {
+            int end = Math.min(start + batchSize, faces.size());
+            predictions.addAll(predictChunk(faces.subList(start, end)));
+        }
+        return predictions;
+    }
+
+    private List<FacePrediction> predictChunk(List<Mat> faces) {
+        // the arrays of the chunk only live until the scores are copied out, the next chunk reuses their memory
+        try (MemoryWorkspace workspace = Nd4j.getWorkspaceManager()
+                .getAndActivateWorkspace(WORKSPACE_CONFIGURATION, WORKSPACE_ID)) {
+            long start = System.nanoTime();
+            INDArray input = toInput(faces);
+            record(PipelineMetrics.Stage.PREPROCESS, start);
+
+            INDArray ageResults;
+            INDArray genderResults;
+            if (multiTaskModel != null) {
+                start = System.nanoTime();
+                INDArray[] results = multiTaskModel.output(false, workspace, input);
+                record(PipelineMetrics.Stage.MULTI_TASK_INFERENCE, start);
+                ageResults = results[0];
+                genderResults = results[1];
+            } else {
+                start = System.nanoTime();
+                ageResults = ageModel.output(input, false, workspace);
+                record(PipelineMetrics.Stage.AGE_INFERENCE, start);
+                start = System.nanoTime();
+                genderResults = genderModel.output(input, false, workspace);
+                record(PipelineMetrics.Stage.GENDER_INFERENCE, start);
+            }
+            logger.debug("Ran age and gender models on a batch of {} faces", faces.size());
+
+            List<FacePrediction> predictions = new ArrayList<>(faces.size());
+            for (int i = 0; i < faces.size(); i++) {
+                predictions.add(FacePrediction.fromScores(
+                        ageResults.getRow(i).toFloatVector(),
+                        genderResults.getRow(i).toFloatVector()));
+            }
+            return predictions;
+        }
+    }
+
+    private void record(PipelineMetrics.Stage stage, long start) {
+        if (metrics != null) {
+            metrics.record(stage, start);
+        }
+    }
+
+    private INDArray toInput(List<Mat> faces) {
+        for (int i = 0; i < faces.size(); i++) {
+            preprocessor.put(i, faces.get(i));
+        }
+        // no copy for FP32 models, a single cast shared by both models otherwise
+        return preprocessor.batch(faces.size()).castTo(dataType);
+    }
+}
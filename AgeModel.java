@@ -45,16 +45,17 @@ public class AgeModel {
     private static InputSplit trainData,testData;
     private static DataNormalization scaler = new ImagePreProcessingScaler(0, 1);
     private static ImageTransform transform;
-    private static final int height = 224;
-    private static final int width = 224;
+    private static int height = ModelInputSize.DEFAULT;
+    private static int width = ModelInputSize.DEFAULT;
     private static final int channels = 3;
     private static final int numClasses = 7;
-    private static int batchSize = 32;
+    private static int batchSize = Hyperparameters.batchSize(32);
     private static int seed = 123;
     private static final Random rng = new Random(seed);
     private static final String [] allowedExtensions = BaseImageLoader.ALLOWED_FORMATS;
     private static int trainPerc = 80;
-    private static int epochs = 25;
+    private static int epochs = Hyperparameters.epochs(25);
+    private static File sourceDir;
     private static File modelFilename = new File(System.getProperty("user.dir"), "generated-models/AgeDetection.zip");
 
 
@@ -62,41 +63,100 @@ public class AgeModel {
 
     public static void main(String[] Args) throws Exception
     {
+        if (Args.length > 0) {
+            // e.g. a low resolution variant trained with -Dagegender.inputSize=128
+            modelFilename = new File(Args[0]);
+        }
+
+        setup(batchSize);
+
+        //create iterators
+        DataSetIterator trainIter = trainIterator();
+        DataSetIterator testIter = testIterator();
+
+        //model configuration
+        MultiLayerConfiguration conf = configuration();
+
+        if (TrainingLoop.UI) {
+            StatsStorage storage = new InMemoryStatsStorage();
+            UIServer server = UIServer.getInstance();
+            server.attach(storage);
+        }
+
+        //train model and eval model
+        MultiLayerNetwork model = new MultiLayerNetwork(conf);
+        model.init();
+        model.setListeners(new ScoreIterationListener(50));
+
+        // early stopping on a test subsample, resumes from the last checkpoint of an interrupted run
+        try (TrainingLoop<MultiLayerNetwork> loop = new TrainingLoop<>(modelFilename.getName().replace(".zip", ""), model, trainIter, testIter, epochs)) {
+            model = loop.run();
+
+            {
+                testIter.reset();
+                Evaluation evaluation = model.evaluate(testIter);
+                System.out.println(evaluation.stats());
+            }
+            {
+                Evaluation evaluation = TrainingLoop.evaluateSubsample(model, trainIter);
+                System.out.println(evaluation.stats());
+            }
+
+            ModelSerializer.writeModel(model, modelFilename, true);
+            ModelInputSize.record(modelFilename, height);
+            loop.deleteCheckpoints();
+        }
+
+        logger.info("Model completed");
+    }
+
+    /**
+     * Splits the age dataset into train and test sets and sets up the augmentation of the training images.
+     *
+     * @param batchSizeArg minibatch size of the iterators
+     */
+    public static void setup(int batchSizeArg) throws IOException {
+        batchSize = batchSizeArg;
 
         // image augmentation
         File dir = new ClassPathResource("age-classification").getFile();
-        ImageTransform horizontalFlip = new FlipImageTransform(1);
-        ImageTransform cropImage = new CropImageTransform(25);
-        ImageTransform rotateImage = new RotateImageTransform(rng, 15);
-        boolean shuffle = false;
-        List<Pair<ImageTransform,Double>> pipeline = Arrays.asList(
-                new Pair<>(horizontalFlip,0.5),
-                new Pair<>(rotateImage, 0.5),
-                new Pair<>(cropImage,0.3));
-        transform = new PipelineImageTransform(pipeline,shuffle);
+        transform = Augmentation.create(seed);
+        sourceDir = dir;
+        if (DatasetCache.ENABLED) {
+            // the split is stored in the dataset cache, no need to walk the directory tree
+            return;
+        }
         FileSplit filesInDir = new FileSplit(dir, allowedExtensions, rng);
         BalancedPathFilter pathFilter = new BalancedPathFilter(rng, allowedExtensions, labelMaker);
         InputSplit[] filesInDirSplit = filesInDir.sample(pathFilter, trainPerc, 100-trainPerc);
         trainData = filesInDirSplit[0];
         testData = filesInDirSplit[1];
+    }
 
-        //create iterators
-        DataSetIterator trainIter = trainIterator();
-        DataSetIterator testIter = testIterator();
+    /**
+     * Sets the side of the square images the iterators produce, {@link ModelInputSize#DEFAULT} unless set.
+     */
+    public static void setInputSize(int inputSize) {
+        height = inputSize;
+        width = inputSize;
+    }
 
-        //model configuration
-        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+    /**
+     * Configuration of the age network for the current input size.
+     */
+    static MultiLayerConfiguration configuration() {
+        return new NeuralNetConfiguration.Builder()
                 .seed(seed)
                 .weightInit(WeightInit.XAVIER)
-                .updater(new Adam(0.001))
-                .l2(0.0005)
+                .updater(new Adam(Hyperparameters.LEARNING_RATE))
+                .l2(Hyperparameters.L2)
                 .list()
                 .layer(0,new BatchNormalization())
                 .layer(1,new ConvolutionLayer.Builder()
                         .kernelSize(5,5)
                         .stride(2,2)
                         .nIn(channels)
-                        .nOut(100)
+                        .nOut(Hyperparameters.width(100))
                         .activation(Activation.RELU)
                         .build())
                 .layer(2,new SubsamplingLayer.Builder(SubsamplingLayer.PoolingType.MAX)
@@ -106,7 +166,7 @@ public class AgeModel {
                 .layer(3,new ConvolutionLayer.Builder()
                         .kernelSize(5,5)
                         .stride(2,2)
-                        .nOut(100)
+                        .nOut(Hyperparameters.width(100))
                         .activation(Activation.RELU)
                         .build())
                 .layer(4,new SubsamplingLayer.Builder(SubsamplingLayer.PoolingType.MAX)
@@ -114,43 +174,26 @@ public class AgeModel {
                         .stride(1,1)
                         .build())
                 .layer(5, new DenseLayer.Builder()
-                        .nOut(100)
+                        .nOut(Hyperparameters.width(100))
                         .activation(Activation.RELU)
                         .build()).layer(6,new OutputLayer.Builder(LossFunctions.LossFunction.MCXENT)
                         .activation(Activation.SOFTMAX)
-                        .nIn(100)
+                        .nIn(Hyperparameters.width(100))
                         .nOut(numClasses)
                         .build())
                 .setInputType(InputType.convolutional(height,width,channels))
                 .backpropType(BackpropType.Standard)
                 .build();
-
-        StatsStorage storage = new InMemoryStatsStorage();
-        UIServer server = UIServer.getInstance();
-        server.attach(storage);
-
-        //train model and eval model
-        MultiLayerNetwork model = new MultiLayerNetwork(conf);
-        model.init();
-        model.setListeners(new ScoreIterationListener(50));
-
-        model.fit(trainIter,epochs);
-
-        {
-            Evaluation evaluation = model.evaluate(testIter);
-            System.out.println(evaluation.stats());
-        }
-        {
-            Evaluation evaluation = model.evaluate(trainIter);
-            System.out.println(evaluation.stats());
-        }
-
-        ModelSerializer.writeModel(model, modelFilename, true);
-
-        logger.info("Model completed");
     }
 
     private static DataSetIterator makeIterator(InputSplit split, boolean training) throws IOException {
+        if (DatasetCache.ENABLED) {
+            DatasetCache cache = DatasetCache.open(sourceDir, "age", height, trainPerc, seed);
+            DataSetIterator iter = new CachedDataSetIterator(cache, training, batchSize,
+                    training ? Augmentation::create : null, seed);
+            iter.setPreProcessor(scaler);
+            return iter;
+        }
         ImageRecordReader recordReader = new ImageRecordReader(height,width,channels,labelMaker);
         if (training && transform != null){
             recordReader.initialize(split,transform);
@@ -0,0 +1,93 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Scalar;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bytedeco.opencv.global.opencv_core.CV_8UC3;
+
+/**
+ * Checks that preparing faces for inference allocates next to nothing once warmed up.
+ * <p>
+ * Every frame puts a full batch of synthetic crops of different sizes into a {@link FacePreprocessor}, takes the
+ * batches of every size out of it and hashes every crop with a {@link PredictionCache.Hasher}, as
+ * {@link AgeGenderPredictor} does. After {@value #WARMUP_FRAMES} frames the heap bytes allocated by the thread,
+ * from {@code ThreadMXBean.getThreadAllocatedBytes}, and the native bytes held through JavaCPP are measured around
+ * {@code agegender.alloc.frames} (10000) more. The check fails with exit code 1 when the heap allocation per frame
+ * is above {@code agegender.alloc.maxHeapBytesPerFrame} (16) or the native bytes grew at all.
+ * <p>
+ * Usage: {@code AllocationCheck}
+ */
+public class AllocationCheck {
+
+    private static final Logger logger = LoggerFactory.getLogger(AllocationCheck.class);
+
+    private static final int FRAMES = Integer.getInteger("agegender.alloc.frames", 10_000);
+    private static final long MAX_HEAP_BYTES_PER_FRAME = Long.getLong("agegender.alloc.maxHeapBytesPerFrame", 16);
+    private static final int WARMUP_FRAMES = 1_000;
+    private static final int[] CROP_SIZES = {48, 100, 180};
+
+    public static void main(String[] args) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            throw new IllegalStateException("This JVM does not count the bytes allocated by a thread");
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        int capacity = AgeGenderPredictor.DEFAULT_BATCH_SIZE;
+        FacePreprocessor preprocessor = new FacePreprocessor(capacity, ModelInputSize.DEFAULT, ModelInputSize.DEFAULT);
+        PredictionCache.Hasher hasher = new PredictionCache.Hasher();
+        List<Mat> faces = new ArrayList<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            int size = CROP_SIZES[i % CROP_SIZES.length];
+            faces.add(new Mat(size, size, CV_8UC3, new Scalar(16 * i % 256, 96, 160, 0)));
+        }
+
+        long checksum = 0;
+        for (int frame = 0; frame < WARMUP_FRAMES; frame++) {
+            checksum += frame(preprocessor, hasher, faces);
+        }
+
+        long thread = Thread.currentThread().getId();
+        long heapBefore = threads.getThreadAllocatedBytes(thread);
+        long nativeBefore = Pointer.totalBytes();
+        for (int frame = 0; frame < FRAMES; frame++) {
+            checksum += frame(preprocessor, hasher, faces);
+        }
+        long heapBytes = threads.getThreadAllocatedBytes(thread) - heapBefore;
+        long nativeBytes = Pointer.totalBytes() - nativeBefore;
+
+        double heapPerFrame = (double) heapBytes / FRAMES;
+        logger.info("{} frames of {} faces: {} heap bytes per frame, {} native bytes in total (checksum {})", FRAMES,
+                capacity, String.format("%.2f", heapPerFrame), nativeBytes, checksum);
+        boolean passed = true;
+        if (heapPerFrame > MAX_HEAP_BYTES_PER_FRAME) {
+            logger.error("Preprocessing allocates {} heap bytes per frame, more than {}",
+                    String.format("%.2f", heapPerFrame), MAX_HEAP_BYTES_PER_FRAME);
+            passed = false;
+        }
+        if (nativeBytes > 0) {
+            logger.error("Preprocessing holds {} more native bytes after {} frames", nativeBytes, FRAMES);
+            passed = false;
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static long frame(FacePreprocessor preprocessor, PredictionCache.Hasher hasher, List<Mat> faces) {
+        long checksum = 0;
+        for (int i = 0; i < faces.size(); i++) {
+            preprocessor.put(i, faces.get(i));
+            checksum += hasher.hash(faces.get(i));
+        }
+        for (int count = 1; count <= faces.size(); count++) {
+            checksum += preprocessor.batch(count).length();
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,41 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.datavec.image.transform.CropImageTransform;
+import org.datavec.image.transform.FlipImageTransform;
+import org.datavec.image.transform.ImageTransform;
+import org.datavec.image.transform.PipelineImageTransform;
+import org.datavec.image.transform.RotateImageTransform;
+import org.nd4j.common.primitives.Pair;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Augmentation of the training images of the age and gender models: horizontal flip, rotation and crop.
+ */
+public final class Augmentation {
+
+    private Augmentation() {
+    }
+
+    /**
+     * Creates the augmentation pipeline. Transforms keep state between images, every thread needs its own.
+     *
+     * @param seed seeds which transforms are applied and how
+     */
+    public static ImageTransform create(long seed) {
+        Random rng = new Random(seed);
+        ImageTransform horizontalFlip = new FlipImageTransform(1);
+        ImageTransform cropImage = new CropImageTransform(25);
+        ImageTransform rotateImage = new RotateImageTransform(rng, 15);
+        boolean shuffle = false;
+        List<Pair<ImageTransform, Double>> pipeline = Arrays.asList(
+                new Pair<>(horizontalFlip, 0.5),
+                new Pair<>(rotateImage, 0.5),
+                new Pair<>(cropImage, 0.3)
+//                ,new Pair<>(new ShowImageTransform("Image", 1000), 1.0) //uncomment this to show transform image
+        );
+        return new PipelineImageTransform(rng, seed, pipeline, shuffle);
+    }
+}
@@ -0,0 +1,230 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.datavec.image.loader.BaseImageLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imread;
+
+/**
+ * Headless age and gender classification of every image below a directory, no camera nor display needed.
+ * <p>
+ * Images are read and searched for faces by one thread per core. The faces of all images go through a shared
+ * {@link InferenceScheduler}, so faces from different images are batched together. One line per face is written
+ * to a JSONL or CSV file, depending on its extension.
+ * <p>
+ * Every fully processed image is appended to a {@code <output>.done} checkpoint file. When started again on the same
+ * output, images listed in it are skipped and new results are appended, so a crashed run resumes where it stopped.
+ * An image processed right before a crash may be written twice.
+ * <p>
+ * Usage: {@code BatchImageRunner <images dir> <output.jsonl|output.csv> [detection threads]}
+ */
+public class BatchImageRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchImageRunner.class);
+
+    private static final long REPORT_INTERVAL_MS = 10_000;
+    private static final Set<String> allowedExtensions = new HashSet<>(Arrays.asList(BaseImageLoader.ALLOWED_FORMATS));
+
+    private final InferenceScheduler scheduler;
+    private final PerThreadFaceDetectors detectors;
+    private final boolean csv;
+    private final Writer output;
+    private final File checkpointFile;
+    private final Writer checkpoint;
+
+    private final AtomicLong images = new AtomicLong();
+    private final AtomicLong faces = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: BatchImageRunner <images dir> <output.jsonl|output.csv> [detection threads]");
+            System.exit(1);
+        }
+        Path inputDir = new File(args[0]).toPath();
+        File outputFile = new File(args[1]);
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        InferenceScheduler scheduler = new InferenceScheduler(AgeGenderPredictor.restore(AgeGenderPredictor.DEFAULT_BATCH_SIZE));
+        try {
+            new BatchImageRunner(scheduler, outputFile).run(inputDir, threads);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    public BatchImageRunner(InferenceScheduler scheduler, File outputFile) throws IOException {
+        this.scheduler = scheduler;
+        // images are unrelated to each other, searching around previous faces would only miss faces
+        this.detectors = new PerThreadFaceDetectors(() ->
+                FaceDetector.create(FaceDetector.DEFAULT_BACKEND, new DetectionSettings().setRoiTracking(false)));
+        this.csv = outputFile.getName().toLowerCase(Locale.ROOT).endsWith(".csv");
+
+        boolean resuming = outputFile.exists();
+        this.output = Files.newBufferedWriter(outputFile.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        this.checkpointFile = checkpointFile(outputFile);
+        this.checkpoint = Files.newBufferedWriter(checkpointFile.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        if (csv && !resuming) {
+            output.write("file,x,y,width,height,age,age_confidence,gender,gender_confidence\n");
+        }
+    }
+
+    /**
+     * Processes every image below a directory that is not in the checkpoint yet.
+     *
+     * @param inputDir root of the images
+     * @param threads  number of threads reading images and detecting faces
+     */
+    public void run(Path inputDir, int threads) throws IOException, InterruptedException {
+        Set<String> done = loadCheckpoint();
+        if (!done.isEmpty()) {
+            logger.info("Resuming, {} images already processed", done.size());
+        }
+
+        // a bounded queue keeps the directory walk from getting ahead of the workers
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+
+        long start = System.currentTimeMillis();
+        long lastReport = start;
+        try (Stream<Path> paths = Files.walk(inputDir)) {
+            for (Path path : (Iterable<Path>) paths.filter(Files::isRegularFile)::iterator) {
+                String file = path.toString();
+                if (!isImage(file) || done.contains(file)) {
+                    continue;
+                }
+                executor.execute(() -> process(file));
+
+                long now = System.currentTimeMillis();
+                if (now - lastReport >= REPORT_INTERVAL_MS) {
+                    report(now - start);
+                    lastReport = now;
+                }
+            }
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        detectors.close();
+        output.close();
+        checkpoint.close();
+        report(System.currentTimeMillis() - start);
+    }
+
+    private void process(String file) {
+        Mat image = imread(file);
+        Map<Rect, Mat> detectedFaces = Collections.emptyMap();
+        List<CompletableFuture<FacePrediction>> predictions = new ArrayList<>();
+        try {
+            if (image == null || image.empty()) {
+                logger.warn("Unable to read image {}", file);
+                failures.incrementAndGet();
+                return;
+            }
+
+            detectedFaces = detectors.get().detect(image);
+            List<Rect> rects = new ArrayList<>(detectedFaces.keySet());
+            for (Rect rect : rects) {
+                predictions.add(scheduler.submit(detectedFaces.get(rect)));
+            }
+
+            StringBuilder lines = new StringBuilder();
+            for (int i = 0; i < rects.size(); i++) {
+                FacePrediction prediction = predictions.get(i).join();
+                lines.append(csv ? toCsv(file, rects.get(i), prediction) : toJson(file, rects.get(i), prediction)).append('\n');
+            }
+
+            synchronized (this) {
+                output.write(lines.toString());
+                output.flush();
+                checkpoint.write(file);
+                checkpoint.write('\n');
+                checkpoint.flush();
+            }
+            images.incrementAndGet();
+            faces.addAndGet(rects.size());
+        } catch (Exception e) {
+            logger.error("Error when processing image {}", file, e);
+            failures.incrementAndGet();
+        } finally {
+            // the faces point into the image, none of them may still be queued when it is freed
+            CompletableFuture.allOf(predictions.toArray(new CompletableFuture[0])).exceptionally(e -> null).join();
+            for (Mat face : detectedFaces.values()) {
+                face.close();
+            }
+            if (image != null) {
+                image.release();
+            }
+        }
+    }
+
+    private void report(long elapsedMs) {
+        double seconds = Math.max(elapsedMs, 1) / 1000.0;
+        logger.info("Processed {} images ({} images/sec), {} faces ({} faces/sec), {} failures, inference queue depth {}",
+                images.get(), String.format("%.1f", images.get() / seconds),
+                faces.get(), String.format("%.1f", faces.get() / seconds),
+                failures.get(), scheduler.getQueueDepth());
+    }
+
+    private Set<String> loadCheckpoint() throws IOException {
+        return new HashSet<>(Files.readAllLines(checkpointFile.toPath(), StandardCharsets.UTF_8));
+    }
+
+    static File checkpointFile(File outputFile) {
+        return new File(outputFile.getPath() + ".done");
+    }
+
+    private static boolean isImage(String file) {
+        int dot = file.lastIndexOf('.');
+        return dot > 0 && allowedExtensions.contains(file.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private static String toCsv(String file, Rect rect, FacePrediction prediction) {
+        return String.format(Locale.ROOT, "%s,%d,%d,%d,%d,%s,%.4f,%s,%.4f",
+                csvField(file), rect.x(), rect.y(), rect.width(), rect.height(),
+                prediction.getAge(), prediction.getAgeConfidence(),
+                prediction.getGender(), prediction.getGenderConfidence());
+    }
+
+    private static String toJson(String file, Rect rect, FacePrediction prediction) {
+        return String.format(Locale.ROOT,
+                "{\"file\":%s,\"x\":%d,\"y\":%d,\"width\":%d,\"height\":%d,\"age\":\"%s\",\"ageScores\":%s,\"gender\":\"%s\",\"genderScores\":%s}",
+                JsonUtils.string(file), rect.x(), rect.y(), rect.width(), rect.height(),
+                prediction.getAge(), JsonUtils.array(prediction.getAgeScores()),
+                prediction.getGender(), JsonUtils.array(prediction.getGenderScores()));
+    }
+
+    private static String csvField(String value) {
+        if (value.contains(",") || value.contains("\"")) {
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value;
+    }
+}
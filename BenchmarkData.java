@@ -0,0 +1,117 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.bytedeco.opencv.opencv_core.Scalar;
+import org.bytedeco.opencv.opencv_core.Size;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.bytedeco.opencv.global.opencv_core.CV_8UC3;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imread;
+import static org.bytedeco.opencv.global.opencv_imgproc.resize;
+
+/**
+ * Stored frames and face crops the benchmarks run on, so that no camera is needed.
+ * <p>
+ * They are read from {@code -Dagegender.bench.data} (default {@code bench-data}), which holds a {@code frames}
+ * directory of camera frames without faces and a {@code faces} directory of face crops. Frames with a given number
+ * of faces are composed by pasting crops onto a stored frame in a grid, so the per-frame path can be measured at any
+ * crowd size from the same data.
+ */
+final class BenchmarkData {
+
+    static final File DIR = new File(System.getProperty("agegender.bench.data", "bench-data"));
+
+    private static final int FRAME_WIDTH = 1280;
+    private static final int FRAME_HEIGHT = 720;
+    private static final int FACE_SIZE = 100;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * @return the stored frames resized to 1280x720, a single gray frame when there are none
+     */
+    static List<Mat> frames() {
+        List<Mat> frames = new ArrayList<>();
+        for (File file : images(new File(DIR, "frames"))) {
+            Mat image = imread(file.getAbsolutePath());
+            if (image.empty()) {
+                continue;
+            }
+            Mat frame = new Mat();
+            resize(image, frame, new Size(FRAME_WIDTH, FRAME_HEIGHT));
+            image.release();
+            frames.add(frame);
+        }
+        if (frames.isEmpty()) {
+            frames.add(new Mat(FRAME_HEIGHT, FRAME_WIDTH, CV_8UC3, new Scalar(96, 96, 96, 0)));
+        }
+        return frames;
+    }
+
+    /**
+     * @return the stored face crops, as they are on disk
+     */
+    static List<Mat> faces() {
+        List<Mat> faces = new ArrayList<>();
+        for (File file : images(new File(DIR, "faces"))) {
+            Mat face = imread(file.getAbsolutePath());
+            if (!face.empty()) {
+                faces.add(face);
+            }
+        }
+        if (faces.isEmpty()) {
+            throw new IllegalStateException("No face crops in " + new File(DIR, "faces").getAbsolutePath());
+        }
+        return faces;
+    }
+
+    /**
+     * Pastes {@code count} crops, cycling through {@code faces}, onto a copy of {@code background} in a grid, each
+     * resized to {@value #FACE_SIZE}x{@value #FACE_SIZE}.
+     */
+    static Mat compose(Mat background, List<Mat> faces, int count) {
+        Mat frame = background.clone();
+        // leave half a face between the crops so that the detector sees them apart
+        int cell = FACE_SIZE * 3 / 2;
+        int columns = FRAME_WIDTH / cell;
+        for (int i = 0; i < count; i++) {
+            int x = (i % columns) * cell + FACE_SIZE / 4;
+            int y = (i / columns) * cell + FACE_SIZE / 4;
+            if (y + FACE_SIZE > FRAME_HEIGHT) {
+                throw new IllegalArgumentException(count + " faces do not fit in a " + FRAME_WIDTH + "x" + FRAME_HEIGHT + " frame");
+            }
+            Mat target = frame.apply(new Rect(x, y, FACE_SIZE, FACE_SIZE));
+            resize(faces.get(i % faces.size()), target, new Size(FACE_SIZE, FACE_SIZE));
+        }
+        return frame;
+    }
+
+    /**
+     * Frees the crops returned by a detector, they are not part of any pointer scope and would pile up until GC.
+     */
+    static void close(Map<Rect, Mat> faces) {
+        for (Mat face : faces.values()) {
+            face.close();
+        }
+    }
+
+    private static List<File> images(File dir) {
+        File[] files = dir.listFiles((d, name) -> {
+            String lower = name.toLowerCase(Locale.ROOT);
+            return lower.endsWith(".jpg") || lower.endsWith(".jpeg") || lower.endsWith(".png") || lower.endsWith(".bmp");
+        });
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+}
@@ -0,0 +1,35 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs {@link StageBenchmark}, {@link FramePathBenchmark} and {@link ModelRestoreBenchmark} with the GC profiler,
+ * so every result comes with its allocation rate ({@code gc.alloc.rate.norm} is bytes per operation). Results are
+ * written as JSON to {@code benchmark-results.json} to be compared between releases.
+ * <p>
+ * Any JMH command line option is accepted, e.g. {@code BenchmarkRunner FramePath -p faces=5} runs a single case.
+ * The frames and face crops are read from {@code -Dagegender.bench.data}, see {@link BenchmarkData}.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        OptionsBuilder builder = new OptionsBuilder();
+        if (commandLine.getIncludes().isEmpty()) {
+            builder.include(BenchmarkRunner.class.getPackage().getName() + "\\..*Benchmark");
+        }
+        Options options = builder
+                .parent(commandLine)
+                .addProfiler(GCProfiler.class)
+                .jvmArgsAppend("-Dagegender.bench.data=" + BenchmarkData.DIR.getAbsolutePath())
+                .resultFormat(ResultFormatType.JSON)
+                .result("benchmark-results.json")
+                .build();
+        new Runner(options).run();
+    }
+}
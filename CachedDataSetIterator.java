@@ -0,0 +1,327 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacv.OpenCVFrameConverter;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.datavec.image.data.ImageWritable;
+import org.datavec.image.loader.NativeImageLoader;
+import org.datavec.image.transform.ImageTransform;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.LongFunction;
+
+import static org.bytedeco.opencv.global.opencv_core.CV_8UC3;
+
+/**
+ * Iterates over the training or test split of a {@link DatasetCache}, producing the same minibatches as an
+ * {@code ImageRecordReader} based iterator: NCHW BGR features in 0-255 before the pre-processor, one-hot labels.
+ * <p>
+ * Without augmentation the pixels go straight from the mapped file into the feature array. With augmentation every
+ * image is wrapped, without a copy, in a {@link Mat} over the mapped bytes and goes through the transform.
+ * <p>
+ * Minibatches are built off the training thread by {@code workers} threads ({@code agegender.augment.workers}, all
+ * cores by default), up to {@code prefetch} minibatches ahead ({@code agegender.augment.prefetch}), and handed out in
+ * order. Image transforms keep state and are not thread-safe, so every minibatch gets its own transform and random
+ * generator, both seeded from {@code seed}, the epoch and the position of the minibatch in the epoch: the
+ * augmentations do not depend on the number of workers or on which worker built what. Minibatches of another size,
+ * see {@link #next(int)}, are built on the calling thread. Images per second are logged
+ * at the end of every epoch. {@link #close()} stops the worker threads.
+ */
+public class CachedDataSetIterator implements DataSetIterator, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(CachedDataSetIterator.class);
+
+    public static final int DEFAULT_WORKERS = Integer.getInteger("agegender.augment.workers",
+            Runtime.getRuntime().availableProcessors());
+    public static final int DEFAULT_PREFETCH = Integer.getInteger("agegender.augment.prefetch", 2 * Math.max(1, DEFAULT_WORKERS));
+
+    private final DatasetCache cache;
+    private final int[] indices;
+    private final int batchSize;
+    private final LongFunction<ImageTransform> augmentation;
+    private final long seed;
+    private final int inputSize;
+    private final int numClasses;
+    private final int batches;
+    private final int prefetch;
+
+    private final ExecutorService workers;
+    private final Deque<Future<DataSet>> pending = new ArrayDeque<>();
+    // image loaders and converters are not thread-safe
+    private final ThreadLocal<NativeImageLoader> loaders;
+    private final ThreadLocal<OpenCVFrameConverter.ToMat> converters = ThreadLocal.withInitial(OpenCVFrameConverter.ToMat::new);
+
+    private DataSetPreProcessor preProcessor;
+    private int epoch = 0;
+    // images handed out in this epoch, and the next minibatch to hand to the workers
+    private int cursor = 0;
+    private int submitted = 0;
+    private long epochStart;
+    private long epochImages;
+
+    public CachedDataSetIterator(DatasetCache cache, boolean training, int batchSize,
+                                 LongFunction<ImageTransform> augmentation, long seed) {
+        this(cache, training, batchSize, augmentation, seed, DEFAULT_WORKERS, DEFAULT_PREFETCH);
+    }
+
+    /**
+     * @param training     iterate over the training split rather than the test split
+     * @param augmentation creates the transform of a minibatch from its seed, see {@link Augmentation#create}, or null
+     * @param workers      threads building minibatches
+     * @param prefetch     how many minibatches may be built ahead of the caller
+     */
+    public CachedDataSetIterator(DatasetCache cache, boolean training, int batchSize,
+                                 LongFunction<ImageTransform> augmentation, long seed, int workers, int prefetch) {
+        this.cache = cache;
+        this.indices = training ? cache.getTrainIndices() : cache.getTestIndices();
+        this.batchSize = batchSize;
+        this.augmentation = augmentation;
+        this.seed = seed;
+        this.inputSize = cache.getInputSize();
+        this.numClasses = cache.getLabels().size();
+        this.batches = (indices.length + batchSize - 1) / batchSize;
+        this.prefetch = Math.max(1, prefetch);
+        this.loaders = ThreadLocal.withInitial(() -> new NativeImageLoader(inputSize, inputSize, 3));
+        // never on the training thread, transforms reseed the ND4J generator of the thread they are created on
+        this.workers = Executors.newFixedThreadPool(Math.max(1, workers), runnable -> {
+            Thread thread = new Thread(runnable, "augment");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public boolean hasNext() {
+        return cursor < indices.length;
+    }
+
+    @Override
+    public DataSet next() {
+        return next(batchSize);
+    }
+
+    /**
+     * Minibatches of the configured size come from the workers. A minibatch of another size is built on the calling
+     * thread from the next {@code num} images, seeded from the epoch and its first image, and so are the minibatches
+     * after it until the epoch ends, as they no longer line up with the ones built ahead.
+     */
+    @Override
+    public DataSet next(int num) {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if (epochImages == 0) {
+            epochStart = System.nanoTime();
+        }
+
+        DataSet dataSet;
+        if (num == batchSize && cursor % batchSize == 0) {
+            int nextBatch = cursor / batchSize;
+            while (submitted < batches && submitted < nextBatch + prefetch) {
+                int batch = submitted++;
+                int batchEpoch = epoch;
+                int start = batch * batchSize;
+                pending.addLast(workers.submit(() -> build(start, Math.min(batchSize, indices.length - start),
+                        batchSeed(batchEpoch, batch))));
+            }
+            try {
+                dataSet = pending.removeFirst().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a minibatch", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Unable to build a minibatch", e.getCause());
+            }
+        } else {
+            cancelPending();
+            // negative, apart from the seeds of the minibatches of the configured size
+            dataSet = build(cursor, Math.min(num, indices.length - cursor), batchSeed(epoch, -1 - cursor));
+            submitted = (cursor + dataSet.numExamples() + batchSize - 1) / batchSize;
+        }
+        cursor += dataSet.numExamples();
+
+        epochImages += dataSet.numExamples();
+        if (!hasNext()) {
+            double seconds = (System.nanoTime() - epochStart) / 1e9;
+            logger.info("{} images in {} s, {} images/sec", epochImages, String.format("%.1f", seconds),
+                    String.format("%.1f", epochImages / seconds));
+        }
+        if (preProcessor != null) {
+            preProcessor.preProcess(dataSet);
+        }
+        return dataSet;
+    }
+
+    private DataSet build(int start, int count, long batchSeed) {
+        int plane = inputSize * inputSize;
+        float[] features = new float[count * 3 * plane];
+        INDArray labels = Nd4j.zeros(DataType.FLOAT, count, numClasses);
+        ImageTransform transform = augmentation == null ? null : augmentation.apply(batchSeed);
+        Random rng = new Random(batchSeed);
+
+        for (int i = 0; i < count; i++) {
+            int index = indices[start + i];
+            ByteBuffer image = cache.image(index);
+            if (transform == null) {
+                // HWC bytes to CHW floats, the layout NativeImageLoader produces
+                int base = i * 3 * plane;
+                for (int p = 0; p < plane; p++) {
+                    features[base + p] = image.get(p * 3) & 0xFF;
+                    features[base + plane + p] = image.get(p * 3 + 1) & 0xFF;
+                    features[base + 2 * plane + p] = image.get(p * 3 + 2) & 0xFF;
+                }
+            } else {
+                float[] augmented = augment(image, transform, rng);
+                System.arraycopy(augmented, 0, features, i * 3 * plane, augmented.length);
+            }
+            labels.putScalar(i, cache.label(index), 1.0);
+        }
+        return new DataSet(Nd4j.create(features, new long[]{count, 3, inputSize, inputSize}), labels);
+    }
+
+    private long batchSeed(int batchEpoch, int batch) {
+        long mixed = seed;
+        mixed = mixed * 0x9E3779B97F4A7C15L + batchEpoch;
+        mixed = mixed * 0x9E3779B97F4A7C15L + batch;
+        return mixed;
+    }
+
+    private float[] augment(ByteBuffer image, ImageTransform transform, Random rng) {
+        Mat mat = new Mat(inputSize, inputSize, CV_8UC3, new BytePointer(image));
+        try {
+            ImageWritable transformed = transform.transform(new ImageWritable(converters.get().convert(mat)), rng);
+            // transforms like cropping change the size, the loader scales back to the input size
+            return loaders.get().asMatrix(transformed).castTo(DataType.FLOAT).data().asFloat();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            mat.close();
+        }
+    }
+
+    @Override
+    public int inputColumns() {
+        return inputSize * inputSize * 3;
+    }
+
+    @Override
+    public int totalOutcomes() {
+        return numClasses;
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    /**
+     * Prefetching already happens inside, wrapping in an {@code AsyncDataSetIterator} would only add a thread.
+     */
+    @Override
+    public boolean asyncSupported() {
+        return false;
+    }
+
+    /**
+     * Starts the next epoch, which draws different augmentations than the previous one.
+     */
+    @Override
+    public void reset() {
+        cancelPending();
+        if (cursor > 0) {
+            epoch++;
+        }
+        cursor = 0;
+        submitted = 0;
+        epochImages = 0;
+    }
+
+    private void cancelPending() {
+        for (Future<DataSet> future : pending) {
+            future.cancel(true);
+        }
+        pending.clear();
+    }
+
+    /**
+     * Positions the iterator before minibatch {@code batch} of epoch {@code epoch}, e.g. to resume training from a
+     * checkpoint. As minibatches only depend on the seed, the epoch and their position, the skipped ones are not built.
+     */
+    public void seek(int epoch, int batch) {
+        reset();
+        this.epoch = epoch;
+        submitted = Math.min(batch, batches);
+        cursor = Math.min(submitted * batchSize, indices.length);
+    }
+
+    /**
+     * @return the epoch being iterated, counting the resets after at least one minibatch
+     */
+    public int getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * @return the position of the next minibatch in the epoch
+     */
+    public int getPosition() {
+        return (cursor + batchSize - 1) / batchSize;
+    }
+
+    @Override
+    public int batch() {
+        return batchSize;
+    }
+
+    @Override
+    public void setPreProcessor(DataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return cache.getLabels();
+    }
+
+    /**
+     * Drops the minibatches built ahead and stops the worker threads, the iterator cannot be used anymore.
+     */
+    @Override
+    public void close() {
+        cancelPending();
+        workers.shutdownNow();
+    }
+
+    /**
+     * Closes an iterator if it is a {@link CachedDataSetIterator}, other iterators have no threads to stop.
+     */
+    public static void shutdown(DataSetIterator iter) {
+        if (iter instanceof CachedDataSetIterator) {
+            ((CachedDataSetIterator) iter).close();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.bytedeco.javacpp.PointerScope;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.OpenCVFrameConverter;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.bytedeco.opencv.opencv_core.RectVector;
+import org.bytedeco.opencv.opencv_core.Size;
+import org.bytedeco.opencv.opencv_objdetect.CascadeClassifier;
+import org.nd4j.common.io.ClassPathResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.bytedeco.opencv.global.opencv_imgproc.COLOR_BGR2GRAY;
+import static org.bytedeco.opencv.global.opencv_imgproc.INTER_AREA;
+import static org.bytedeco.opencv.global.opencv_imgproc.cvtColor;
+import static org.bytedeco.opencv.global.opencv_imgproc.equalizeHist;
+import static org.bytedeco.opencv.global.opencv_imgproc.resize;
+
+/**
+ * Face detection with an OpenCV cascade classifier. Subclasses only choose the cascade, Haar or LBP, loaded from the
+ * classpath; how it is run is controlled by {@link DetectionSettings}.
+ * <p>
+ * Every detection runs in a {@link PointerScope}: the native objects it allocates, result vectors, sizes, search
+ * regions and their views, are freed when it returns instead of whenever the garbage collector gets to them. Only
+ * the returned rectangles and crops outlive it, the crops are closed by the caller once the frame is done.
+ */
+public abstract class CascadeFaceDetector implements FaceDetector {
+
+    private static final Logger logger = LoggerFactory.getLogger(CascadeFaceDetector.class);
+
+    //private CvHaarClassifierCascade haarClassifierCascade;
+    CascadeClassifier faceCascade;
+    private OpenCVFrameConverter.ToMat toMatConverter;
+
+    private final DetectionSettings settings;
+    private final Mat gray = new Mat();
+    private final Mat small = new Mat();
+    private List<Rect> previousFaces = new ArrayList<>();
+    private long frameCount = 0;
+
+    /**
+     * @param cascadeResource classpath location of the cascade XML file
+     * @param settings        how the cascade is run
+     */
+    protected CascadeFaceDetector(String cascadeResource, DetectionSettings settings) {
+        this.settings = settings;
+        toMatConverter = new OpenCVFrameConverter.ToMat();
+
+        try {
+            File cascade = new ClassPathResource(cascadeResource).getFile();
+            logger.debug("Using cascade file located at : {}", cascade.getAbsolutePath());
+            //haarClassifierCascade = new CvHaarClassifierCascade(cvload(haarCascade.getAbsolutePath()));
+            faceCascade = new CascadeClassifier(cascade.getCanonicalPath());
+
+        } catch (Exception e) {
+            logger.error("Error when trying to get the cascade " + cascadeResource, e);
+            throw new IllegalStateException("Error when trying to get the cascade " + cascadeResource, e);
+        }
+    }
+
+    @Override
+    public Map<Rect, Mat> detect(Frame frame) {
+        return detect(toMatConverter.convert(frame));
+    }
+
+    @Override
+    public Map<Rect, Mat> detect(Mat matImage) {
+        try (PointerScope scope = new PointerScope()) {
+            List<Rect> faces = settings.isFast() ? detectFast(matImage) : detectFullResolution(matImage);
+
+            Map<Rect, Mat> detectedFaces = new HashMap<>();
+            for (Rect faceRect : faces) {
+                // the faces are kept for the next frame and by the caller, take them and their crops out of the scope
+                scope.detach(faceRect);
+                Mat croppedMat = matImage.apply(faceRect);
+                scope.detach(croppedMat);
+                detectedFaces.put(faceRect, croppedMat);
+            }
+            return detectedFaces;
+        }
+    }
+
+    @Override
+    public DetectionSettings getSettings() {
+        return settings;
+    }
+
+    private List<Rect> detectFullResolution(Mat matImage) {
+        /*
+         * return a CV Sequence (kind of a list) with coordinates of rectangle face area.
+         * (returns coordinates of left top corner & right bottom corner)
+         */
+        //CvSeq detectObjects = cvHaarDetectObjects(iplImage, haarClassifierCascade, storage, 1.5, 3, CV_HAAR_DO_CANNY_PRUNING);
+        RectVector detectObjects = new RectVector();
+
+        faceCascade.detectMultiScale(matImage, detectObjects);
+
+        List<Rect> faces = new ArrayList<>();
+        long numberOfPeople = detectObjects.size();
+        for (int i = 0; i < numberOfPeople; i++) {
+            Rect rect = detectObjects.get(i);
+            // copy the rectangle, the one returned by the vector is only valid as long as the vector itself
+            faces.add(new Rect(rect.x(), rect.y(), rect.width(), rect.height()));
+        }
+        return faces;
+    }
+
+    /**
+     * Runs the cascade on an equalised, downscaled grayscale copy of the frame, restricted to the surroundings of
+     * the previous faces between two full sweeps.
+     */
+    private List<Rect> detectFast(Mat matImage) {
+        double scale = settings.getDetectScale();
+        if (matImage.channels() == 1) {
+            matImage.copyTo(gray);
+        } else {
+            cvtColor(matImage, gray, COLOR_BGR2GRAY);
+        }
+        resize(gray, small, new Size((int) Math.round(matImage.cols() * scale), (int) Math.round(matImage.rows() * scale)),
+                0, 0, INTER_AREA);
+        if (settings.isEqualizeHistogram()) {
+            equalizeHist(small, small);
+        }
+
+        Size minSize = new Size((int) (settings.getMinFaceSize() * scale), (int) (settings.getMinFaceSize() * scale));
+        Size maxSize = settings.getMaxFaceSize() > 0
+                ? new Size((int) (settings.getMaxFaceSize() * scale), (int) (settings.getMaxFaceSize() * scale))
+                : new Size();
+
+        // counted on every frame, so that a full sweep comes every interval whether faces were found or not
+        long frame = frameCount++;
+        boolean fullSweep = !settings.isRoiTracking()
+                || previousFaces.isEmpty()
+                || frame % settings.getFullSweepInterval() == 0;
+
+        List<Rect> found = new ArrayList<>();
+        if (fullSweep) {
+            detectIn(small, 0, 0, minSize, maxSize, found);
+        } else {
+            for (Rect previous : previousFaces) {
+                Rect roi = searchRegion(previous, scale, small.cols(), small.rows());
+                if (roi.width() > minSize.width() && roi.height() > minSize.height()) {
+                    detectIn(small.apply(roi), roi.x(), roi.y(), minSize, maxSize, found);
+                }
+            }
+        }
+
+        // map the rectangles back to the full resolution frame
+        List<Rect> faces = new ArrayList<>(found.size());
+        for (Rect rect : found) {
+            int x = (int) Math.round(rect.x() / scale);
+            int y = (int) Math.round(rect.y() / scale);
+            int w = Math.min((int) Math.round(rect.width() / scale), matImage.cols() - x);
+            int h = Math.min((int) Math.round(rect.height() / scale), matImage.rows() - y);
+            faces.add(new Rect(x, y, w, h));
+        }
+        previousFaces = faces;
+        return faces;
+    }
+
+    private void detectIn(Mat image, int offsetX, int offsetY, Size minSize, Size maxSize, List<Rect> found) {
+        RectVector detectObjects = new RectVector();
+        faceCascade.detectMultiScale(image, detectObjects, settings.getScaleFactor(), settings.getMinNeighbors(), 0,
+                minSize, maxSize);
+
+        for (long i = 0; i < detectObjects.size(); i++) {
+            Rect rect = detectObjects.get(i);
+            Rect face = new Rect(rect.x() + offsetX, rect.y() + offsetY, rect.width(), rect.height());
+            // search regions of faces close to each other overlap, keep a single detection per face
+            boolean duplicate = false;
+            for (Rect other : found) {
+                if (FaceTracker.iou(face, other) > 0.5) {
+                    duplicate = true;
+                    break;
+                }
+            }
+            if (!duplicate) {
+                found.add(face);
+            }
+        }
+    }
+
+    private Rect searchRegion(Rect previous, double scale, int cols, int rows) {
+        double margin = settings.getRoiMargin();
+        int x = (int) ((previous.x() - previous.width() * margin) * scale);
+        int y = (int) ((previous.y() - previous.height() * margin) * scale);
+        int w = (int) (previous.width() * (1 + 2 * margin) * scale);
+        int h = (int) (previous.height() * (1 + 2 * margin) * scale);
+        int x1 = Math.max(x, 0);
+        int y1 = Math.max(y, 0);
+        int x2 = Math.min(x + w, cols);
+        int y2 = Math.min(y + h, rows);
+        return new Rect(x1, y1, Math.max(x2 - x1, 0), Math.max(y2 - y1, 0));
+    }
+
+    /**
+     * Frees the cascade and the scratch images, the detector cannot be used afterwards.
+     */
+    @Override
+    public void close() {
+        faceCascade.close();
+        gray.close();
+        small.close();
+    }
+}
@@ -0,0 +1,334 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Size;
+import org.datavec.image.loader.BaseImageLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imread;
+import static org.bytedeco.opencv.global.opencv_imgproc.resize;
+
+/**
+ * Decoded, resized training images stored in a single memory-mapped file, so that an epoch does not decode a JPEG.
+ * <p>
+ * The first {@link #open} of an image directory decodes every image once, resizes it to the input size and writes
+ * it as {@code inputSize x inputSize x 3} BGR bytes, the layout of an OpenCV {@link Mat}, together with its label
+ * (the name of its parent directory, as with {@code ParentPathLabelGenerator}) and whether it belongs to the
+ * training or the test split. Later opens map the file and read images straight from the page cache. The file
+ * records a fingerprint of the directory (paths, sizes and modification times), the input size, the split
+ * percentage and the seed, and is rebuilt whenever any of them changes. The directory is only walked by the first
+ * open of a process, later opens with the same arguments return the cache already mapped.
+ * <p>
+ * The split is stratified: {@code trainPerc} percent of every label goes to training, picked with the seed. Images
+ * are stored shuffled with the same seed so that minibatches mix labels.
+ * <p>
+ * Enabled with {@code -Dagegender.datasetCache=true} (the default), files go to {@code agegender.datasetCache.dir}.
+ */
+public final class DatasetCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(DatasetCache.class);
+
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("agegender.datasetCache", "true"));
+    public static final File DIR = new File(System.getProperty("agegender.datasetCache.dir",
+            new File(System.getProperty("user.dir"), "dataset-cache").getPath()));
+
+    private static final int MAGIC = 0x41474443;
+    private static final int VERSION = 1;
+    private static final int CHANNELS = 3;
+
+    // opened caches of this process, by source directory and arguments
+    private static final Map<String, DatasetCache> opened = new HashMap<>();
+
+    private final File file;
+    private final int inputSize;
+    private final int imageBytes;
+    private final List<String> labels;
+    private final int[] exampleLabels;
+    private final int[] trainIndices;
+    private final int[] testIndices;
+    private final MappedByteBuffer[] segments;
+    private final int imagesPerSegment;
+
+    private DatasetCache(File file, int inputSize, List<String> labels, int[] exampleLabels, boolean[] train,
+                         long dataOffset) throws IOException {
+        this.file = file;
+        this.inputSize = inputSize;
+        this.imageBytes = inputSize * inputSize * CHANNELS;
+        this.labels = Collections.unmodifiableList(labels);
+        this.exampleLabels = exampleLabels;
+
+        List<Integer> trainList = new ArrayList<>();
+        List<Integer> testList = new ArrayList<>();
+        for (int i = 0; i < train.length; i++) {
+            (train[i] ? trainList : testList).add(i);
+        }
+        this.trainIndices = trainList.stream().mapToInt(Integer::intValue).toArray();
+        this.testIndices = testList.stream().mapToInt(Integer::intValue).toArray();
+
+        // a single mapping is limited to 2 GB, so larger caches are mapped in segments of whole images
+        this.imagesPerSegment = Integer.MAX_VALUE / imageBytes;
+        int count = exampleLabels.length;
+        int segmentCount = (count + imagesPerSegment - 1) / imagesPerSegment;
+        this.segments = new MappedByteBuffer[segmentCount];
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (int s = 0; s < segmentCount; s++) {
+                int images = Math.min(imagesPerSegment, count - s * imagesPerSegment);
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        dataOffset + (long) s * imagesPerSegment * imageBytes, (long) images * imageBytes);
+            }
+        }
+    }
+
+    /**
+     * Opens the cache of an image directory, building or rebuilding it first when needed.
+     *
+     * @param sourceDir directory of images in one sub-directory per label
+     * @param name      name of the dataset, the cache file is {@code <name>-<inputSize>.bin}
+     * @param inputSize side of the square the images are resized to
+     * @param trainPerc percentage of every label set aside for training
+     * @param seed      seed of the split and of the order of the images
+     */
+    public static synchronized DatasetCache open(File sourceDir, String name, int inputSize, int trainPerc, long seed)
+            throws IOException {
+        String key = sourceDir.getAbsolutePath() + "|" + name + "|" + inputSize + "|" + trainPerc + "|" + seed;
+        DatasetCache cache = opened.get(key);
+        if (cache == null) {
+            cache = load(sourceDir, name, inputSize, trainPerc, seed);
+            opened.put(key, cache);
+        }
+        return cache;
+    }
+
+    private static DatasetCache load(File sourceDir, String name, int inputSize, int trainPerc, long seed) throws IOException {
+        List<File> images = listImages(sourceDir);
+        long fingerprint = fingerprint(sourceDir, images, inputSize, trainPerc, seed);
+        File file = new File(DIR, name + "-" + inputSize + ".bin");
+
+        if (file.exists()) {
+            DatasetCache cache = read(file, fingerprint);
+            if (cache != null) {
+                logger.info("Using dataset cache {} with {} training and {} test images",
+                        file, cache.trainIndices.length, cache.testIndices.length);
+                return cache;
+            }
+            logger.info("{} changed since {} was built, rebuilding it", sourceDir, file);
+        }
+        build(file, images, sourceDir, fingerprint, inputSize, trainPerc, seed);
+        DatasetCache cache = read(file, fingerprint);
+        if (cache == null) {
+            throw new IOException("Dataset cache " + file + " is unreadable right after it was built");
+        }
+        return cache;
+    }
+
+    public int getInputSize() {
+        return inputSize;
+    }
+
+    public List<String> getLabels() {
+        return labels;
+    }
+
+    public int[] getTrainIndices() {
+        return trainIndices.clone();
+    }
+
+    public int[] getTestIndices() {
+        return testIndices.clone();
+    }
+
+    public int label(int index) {
+        return exampleLabels[index];
+    }
+
+    /**
+     * @return the pixels of an image as {@code inputSize x inputSize x 3} BGR bytes, a view of the mapped file
+     */
+    public ByteBuffer image(int index) {
+        ByteBuffer segment = segments[index / imagesPerSegment].duplicate();
+        int offset = (index % imagesPerSegment) * imageBytes;
+        segment.position(offset).limit(offset + imageBytes);
+        return segment.slice();
+    }
+
+    private static DatasetCache read(File file, long fingerprint) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != fingerprint) {
+                return null;
+            }
+            int inputSize = in.readInt();
+            int labelCount = in.readInt();
+            List<String> labels = new ArrayList<>(labelCount);
+            for (int i = 0; i < labelCount; i++) {
+                labels.add(in.readUTF());
+            }
+            int count = in.readInt();
+            int[] exampleLabels = new int[count];
+            boolean[] train = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                exampleLabels[i] = in.readInt();
+                train[i] = in.readBoolean();
+            }
+            long dataOffset = in.readLong();
+            return new DatasetCache(file, inputSize, labels, exampleLabels, train, dataOffset);
+        } catch (EOFException e) {
+            logger.warn("Dataset cache {} is truncated", file);
+            return null;
+        }
+    }
+
+    private static void build(File file, List<File> images, File sourceDir, long fingerprint, int inputSize,
+                              int trainPerc, long seed) throws IOException {
+        logger.info("Building dataset cache {} from {} images in {}", file, images.size(), sourceDir);
+        long start = System.nanoTime();
+        Random rng = new Random(seed);
+
+        // order the images randomly, then give the first trainPerc percent of every label to training
+        List<File> shuffled = new ArrayList<>(images);
+        Collections.shuffle(shuffled, rng);
+        List<String> labels = shuffled.stream().map(DatasetCache::labelOf).distinct().sorted().collect(Collectors.toList());
+        int[] exampleLabels = new int[shuffled.size()];
+        boolean[] train = new boolean[shuffled.size()];
+        Map<Integer, Integer> labelTotals = new HashMap<>();
+        for (int i = 0; i < shuffled.size(); i++) {
+            exampleLabels[i] = labels.indexOf(labelOf(shuffled.get(i)));
+            labelTotals.merge(exampleLabels[i], 1, Integer::sum);
+        }
+        Map<Integer, Integer> labelTrain = new HashMap<>();
+        for (int i = 0; i < shuffled.size(); i++) {
+            int taken = labelTrain.getOrDefault(exampleLabels[i], 0);
+            if (taken < Math.round(labelTotals.get(exampleLabels[i]) * trainPerc / 100.0)) {
+                train[i] = true;
+                labelTrain.put(exampleLabels[i], taken + 1);
+            }
+        }
+
+        DIR.mkdirs();
+        File tmp = new File(file.getPath() + ".tmp");
+        long dataOffset;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fingerprint);
+            out.writeInt(inputSize);
+            out.writeInt(labels.size());
+            for (String label : labels) {
+                out.writeUTF(label);
+            }
+            out.writeInt(shuffled.size());
+            for (int i = 0; i < shuffled.size(); i++) {
+                out.writeInt(exampleLabels[i]);
+                out.writeBoolean(train[i]);
+            }
+            dataOffset = out.size() + Long.BYTES;
+            out.writeLong(dataOffset);
+        }
+
+        int imageBytes = inputSize * inputSize * CHANNELS;
+        ExecutorService decoders = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE)) {
+            List<Future<?>> futures = new ArrayList<>(shuffled.size());
+            for (int i = 0; i < shuffled.size(); i++) {
+                File image = shuffled.get(i);
+                long position = dataOffset + (long) i * imageBytes;
+                futures.add(decoders.submit(() -> {
+                    channel.write(ByteBuffer.wrap(decode(image, inputSize)), position);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while building " + file);
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to build " + file, e.getCause());
+        } finally {
+            decoders.shutdownNow();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.info("Built {} in {} s", file, (System.nanoTime() - start) / 1_000_000_000);
+    }
+
+    private static byte[] decode(File image, int inputSize) throws IOException {
+        // imread decodes to 3 channel BGR like NativeImageLoader, whatever the channels of the file
+        Mat mat = imread(image.getAbsolutePath());
+        if (mat == null || mat.empty()) {
+            throw new IOException("Unable to decode " + image);
+        }
+        Mat resized = new Mat();
+        try {
+            resize(mat, resized, new Size(inputSize, inputSize));
+            byte[] bytes = new byte[inputSize * inputSize * CHANNELS];
+            resized.data().get(bytes);
+            return bytes;
+        } finally {
+            mat.release();
+            resized.release();
+        }
+    }
+
+    private static String labelOf(File image) {
+        return image.getParentFile().getName();
+    }
+
+    private static List<File> listImages(File sourceDir) throws IOException {
+        Set<String> extensions = new HashSet<>();
+        for (String extension : BaseImageLoader.ALLOWED_FORMATS) {
+            extensions.add(extension.toLowerCase(Locale.ROOT));
+        }
+        try (Stream<Path> paths = Files.walk(sourceDir.toPath())) {
+            return paths.filter(Files::isRegularFile)
+                    .filter(path -> {
+                        String name = path.getFileName().toString();
+                        int dot = name.lastIndexOf('.');
+                        return dot > 0 && extensions.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+                    })
+                    .sorted()
+                    .map(Path::toFile)
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static long fingerprint(File sourceDir, List<File> images, int inputSize, int trainPerc, long seed) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            Path root = sourceDir.toPath();
+            for (File image : images) {
+                digest.update(root.relativize(image.toPath()).toString().getBytes(StandardCharsets.UTF_8));
+                digest.update(ByteBuffer.allocate(2 * Long.BYTES).putLong(image.length()).putLong(image.lastModified()).array());
+            }
+            digest.update(ByteBuffer.allocate(Integer.BYTES * 3 + Long.BYTES)
+                    .putInt(VERSION).putInt(inputSize).putInt(trainPerc).putLong(seed).array());
+            return ByteBuffer.wrap(digest.digest()).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return file.getPath();
+    }
+}
@@ -0,0 +1,140 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+/**
+ * Tuning of the cascade face detection. Defaults can be overridden with {@code -Dagegender.detect.*} system properties.
+ * <p>
+ * In fast mode the frame is converted to grayscale once, downscaled by {@code detectScale} and histogram equalised
+ * before the cascade runs on it. With {@code roiTracking} enabled, only the regions around the faces found in the
+ * previous frame are searched, and the whole frame is swept again every {@code fullSweepInterval} frames.
+ * Face sizes are always given in pixels of the full resolution frame.
+ */
+public class DetectionSettings {
+
+    private boolean fast = Boolean.parseBoolean(System.getProperty("agegender.detect.fast", "true"));
+    private double detectScale = Double.parseDouble(System.getProperty("agegender.detect.scale", "0.5"));
+    private double scaleFactor = Double.parseDouble(System.getProperty("agegender.detect.scaleFactor", "1.1"));
+    private int minNeighbors = Integer.getInteger("agegender.detect.minNeighbors", 3);
+    private int minFaceSize = Integer.getInteger("agegender.detect.minFaceSize", 48);
+    private int maxFaceSize = Integer.getInteger("agegender.detect.maxFaceSize", 0);
+    private boolean equalizeHistogram = Boolean.parseBoolean(System.getProperty("agegender.detect.equalize", "true"));
+    private boolean roiTracking = Boolean.parseBoolean(System.getProperty("agegender.detect.roi", "true"));
+    private int fullSweepInterval = Integer.getInteger("agegender.detect.fullSweepInterval", 10);
+    private double roiMargin = Double.parseDouble(System.getProperty("agegender.detect.roiMargin", "0.5"));
+
+    public boolean isFast() {
+        return fast;
+    }
+
+    /**
+     * @param fast false to run the cascade with its default parameters on the full resolution colour frame
+     */
+    public DetectionSettings setFast(boolean fast) {
+        this.fast = fast;
+        return this;
+    }
+
+    public double getDetectScale() {
+        return detectScale;
+    }
+
+    /**
+     * @param detectScale factor applied to the frame before detection, e.g. 0.5 detects on 640x360 for a 720p frame
+     */
+    public DetectionSettings setDetectScale(double detectScale) {
+        if (detectScale <= 0 || detectScale > 1) {
+            throw new IllegalArgumentException("Detection scale has to be in (0, 1], got " + detectScale);
+        }
+        this.detectScale = detectScale;
+        return this;
+    }
+
+    public double getScaleFactor() {
+        return scaleFactor;
+    }
+
+    /**
+     * @param scaleFactor step between two pyramid levels of the cascade, higher is faster but may miss faces
+     */
+    public DetectionSettings setScaleFactor(double scaleFactor) {
+        if (scaleFactor <= 1) {
+            throw new IllegalArgumentException("Scale factor has to be greater than 1, got " + scaleFactor);
+        }
+        this.scaleFactor = scaleFactor;
+        return this;
+    }
+
+    public int getMinNeighbors() {
+        return minNeighbors;
+    }
+
+    public DetectionSettings setMinNeighbors(int minNeighbors) {
+        this.minNeighbors = minNeighbors;
+        return this;
+    }
+
+    public int getMinFaceSize() {
+        return minFaceSize;
+    }
+
+    public DetectionSettings setMinFaceSize(int minFaceSize) {
+        this.minFaceSize = minFaceSize;
+        return this;
+    }
+
+    public int getMaxFaceSize() {
+        return maxFaceSize;
+    }
+
+    /**
+     * @param maxFaceSize largest face searched for, 0 for no limit
+     */
+    public DetectionSettings setMaxFaceSize(int maxFaceSize) {
+        this.maxFaceSize = maxFaceSize;
+        return this;
+    }
+
+    public boolean isEqualizeHistogram() {
+        return equalizeHistogram;
+    }
+
+    public DetectionSettings setEqualizeHistogram(boolean equalizeHistogram) {
+        this.equalizeHistogram = equalizeHistogram;
+        return this;
+    }
+
+    public boolean isRoiTracking() {
+        return roiTracking;
+    }
+
+    public DetectionSettings setRoiTracking(boolean roiTracking) {
+        this.roiTracking = roiTracking;
+        return this;
+    }
+
+    public int getFullSweepInterval() {
+        return fullSweepInterval;
+    }
+
+    /**
+     * @param fullSweepInterval frames between two searches of the whole frame when searching around previous faces
+     */
+    public DetectionSettings setFullSweepInterval(int fullSweepInterval) {
+        if (fullSweepInterval < 1) {
+            throw new IllegalArgumentException("Full sweep interval has to be at least 1, got " + fullSweepInterval);
+        }
+        this.fullSweepInterval = fullSweepInterval;
+        return this;
+    }
+
+    public double getRoiMargin() {
+        return roiMargin;
+    }
+
+    /**
+     * @param roiMargin how far around a previous face to search, as a fraction of the face size on each side
+     */
+    public DetectionSettings setRoiMargin(double roiMargin) {
+        this.roiMargin = roiMargin;
+        return this;
+    }
+}
@@ -0,0 +1,64 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Bounded hand-off between two pipeline stages. A producer never blocks: when the queue is full the oldest
+ * element is evicted to make room, so a slow consumer always works on the most recent frames.
+ *
+ * @param <T> type of the queued elements
+ */
+public class DropOldestQueue<T> {
+
+    private final ArrayBlockingQueue<T> queue;
+    private final Consumer<T> onDrop;
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param capacity maximum number of queued elements
+     * @param onDrop   called with every evicted element, e.g. to release its native memory
+     */
+    public DropOldestQueue(int capacity, Consumer<T> onDrop) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.onDrop = onDrop;
+    }
+
+    public void put(T element) {
+        while (!queue.offer(element)) {
+            T oldest = queue.poll();
+            if (oldest != null) {
+                dropped.incrementAndGet();
+                onDrop.accept(oldest);
+            }
+        }
+    }
+
+    public T take() throws InterruptedException {
+        return queue.take();
+    }
+
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return queue.poll(timeout, unit);
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Empties the queue, passing every remaining element to the drop callback without counting it as dropped.
+     */
+    public void clear() {
+        T element;
+        while ((element = queue.poll()) != null) {
+            onDrop.accept(element);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+
+import java.util.Map;
+
+/**
+ * Finds faces in frames. Implementations keep state between frames and are not thread-safe.
+ */
+public interface FaceDetector extends AutoCloseable {
+
+    /**
+     * Backend used by {@link #create()}, "haar" or "lbp".
+     */
+    String DEFAULT_BACKEND = System.getProperty("agegender.detect.backend", "haar");
+
+    /**
+     * Detects and returns a map of cropped faces from a given captured frame
+     *
+     * @param frame the frame captured by the {@link org.bytedeco.javacv.FrameGrabber}
+     * @return A map of faces along with their coordinates in the frame
+     */
+    Map<Rect, Mat> detect(Frame frame);
+
+    /**
+     * Detects and returns a map of cropped faces from a given image
+     *
+     * @param image the image to search for faces, the cropped faces share its memory
+     * @return A map of faces along with their coordinates in the image
+     */
+    Map<Rect, Mat> detect(Mat image);
+
+    DetectionSettings getSettings();
+
+    /**
+     * Frees the native resources of the detector.
+     */
+    @Override
+    void close();
+
+    /**
+     * @return a detector for the configured backend and settings
+     */
+    static FaceDetector create() {
+        return create(DEFAULT_BACKEND, new DetectionSettings());
+    }
+
+    /**
+     * @param backend  "haar" or "lbp"
+     * @param settings how the detector is run
+     * @return a detector for the given backend
+     */
+    static FaceDetector create(String backend, DetectionSettings settings) {
+        switch (backend.toLowerCase()) {
+            case "haar":
+                return new HaarFaceDetector(settings);
+            case "lbp":
+                return new LbpFaceDetector(settings);
+            default:
+                throw new IllegalArgumentException("Unknown face detector backend " + backend + ", expected haar or lbp");
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imread;
+
+/**
+ * Runs every face detector backend over the same labelled frames and reports speed, precision and recall, so the
+ * cheapest detector that meets the accuracy bar of a deployment can be picked.
+ * <p>
+ * The frames directory has to contain a {@code labels.csv} file with one {@code file,x,y,width,height} line per
+ * labelled face. A frame without any face is listed with its file name only. A detection counts as correct when it
+ * overlaps a labelled face with an intersection over union of at least 0.5.
+ * <p>
+ * Usage: {@code FaceDetectorComparison <frames dir> [backend,...]}
+ */
+public class FaceDetectorComparison {
+
+    private static final Logger logger = LoggerFactory.getLogger(FaceDetectorComparison.class);
+
+    private static final double MATCH_IOU = 0.5;
+    private static final int WARMUP_FRAMES = 10;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: FaceDetectorComparison <frames dir> [backend,...]");
+            System.exit(1);
+        }
+        File dir = new File(args[0]);
+        List<String> backends = Arrays.asList((args.length > 1 ? args[1] : "haar,lbp").split(","));
+
+        Map<Mat, List<Rect>> frames = loadFrames(dir);
+        logger.info("Loaded {} labelled frames from {}", frames.size(), dir);
+
+        logger.info(String.format("%-8s %12s %12s %10s %10s", "backend", "frames/sec", "faces/sec", "precision", "recall"));
+        for (String backend : backends) {
+            // frames are unrelated to each other, so searching around the previous faces would only hurt recall
+            DetectionSettings settings = new DetectionSettings().setRoiTracking(false);
+            try (FaceDetector detector = FaceDetector.create(backend, settings)) {
+                evaluate(backend, detector, frames);
+            }
+        }
+        for (Mat frame : frames.keySet()) {
+            frame.release();
+        }
+    }
+
+    private static void evaluate(String backend, FaceDetector detector, Map<Mat, List<Rect>> frames) {
+        int warmup = 0;
+        for (Mat frame : frames.keySet()) {
+            if (warmup++ == WARMUP_FRAMES) {
+                break;
+            }
+            close(detector.detect(frame));
+        }
+
+        long truePositives = 0;
+        long falsePositives = 0;
+        long falseNegatives = 0;
+        long detections = 0;
+        long elapsed = 0;
+
+        for (Map.Entry<Mat, List<Rect>> entry : frames.entrySet()) {
+            long start = System.nanoTime();
+            Map<Rect, Mat> faces = detector.detect(entry.getKey());
+            elapsed += System.nanoTime() - start;
+            List<Rect> detected = new ArrayList<>(faces.keySet());
+            close(faces);
+            detections += detected.size();
+
+            List<Rect> unmatched = new ArrayList<>(entry.getValue());
+            for (Rect rect : detected) {
+                Rect best = null;
+                double bestIou = MATCH_IOU;
+                for (Rect label : unmatched) {
+                    double iou = FaceTracker.iou(rect, label);
+                    if (iou >= bestIou) {
+                        bestIou = iou;
+                        best = label;
+                    }
+                }
+                if (best != null) {
+                    unmatched.remove(best);
+                    truePositives++;
+                } else {
+                    falsePositives++;
+                }
+            }
+            falseNegatives += unmatched.size();
+        }
+
+        double seconds = elapsed / 1e9;
+        double precision = truePositives + falsePositives == 0 ? 1 : (double) truePositives / (truePositives + falsePositives);
+        double recall = truePositives + falseNegatives == 0 ? 1 : (double) truePositives / (truePositives + falseNegatives);
+        logger.info(String.format("%-8s %12.1f %12.1f %10.3f %10.3f",
+                backend, frames.size() / seconds, detections / seconds, precision, recall));
+    }
+
+    private static void close(Map<Rect, Mat> faces) {
+        for (Mat face : faces.values()) {
+            face.close();
+        }
+    }
+
+    private static Map<Mat, List<Rect>> loadFrames(File dir) throws IOException {
+        Map<String, List<Rect>> labels = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(new File(dir, "labels.csv").toPath(), StandardCharsets.UTF_8)) {
+            String[] fields = line.trim().split(",");
+            if (fields[0].isEmpty() || fields[0].startsWith("#")) {
+                continue;
+            }
+            List<Rect> faces = labels.computeIfAbsent(fields[0], k -> new ArrayList<>());
+            if (fields.length == 5) {
+                faces.add(new Rect(Integer.parseInt(fields[1].trim()), Integer.parseInt(fields[2].trim()),
+                        Integer.parseInt(fields[3].trim()), Integer.parseInt(fields[4].trim())));
+            }
+        }
+
+        Map<Mat, List<Rect>> frames = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Rect>> entry : labels.entrySet()) {
+            Mat frame = imread(new File(dir, entry.getKey()).getAbsolutePath());
+            if (frame == null || frame.empty()) {
+                logger.warn("Unable to read frame {}, skipping it", entry.getKey());
+                continue;
+            }
+            frames.put(frame, entry.getValue());
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,75 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+/**
+ * Age and gender predicted for a single face, along with the raw class scores of both models.
+ */
+public class FacePrediction {
+
+    private final int ageIndex;
+    private final String age;
+    private final float[] ageScores;
+    private final AgeGenderDetection.Gender gender;
+    private final float[] genderScores;
+
+    public FacePrediction(int ageIndex, String age, float[] ageScores,
+                          AgeGenderDetection.Gender gender, float[] genderScores) {
+        this.ageIndex = ageIndex;
+        this.age = age;
+        this.ageScores = ageScores;
+        this.gender = gender;
+        this.genderScores = genderScores;
+    }
+
+    /**
+     * Builds a prediction from the softmax outputs of the age and gender models.
+     *
+     * @param ageScores    one score per entry of {@link AgeGenderDetection#AGES}
+     * @param genderScores female and male scores, in the order used at training time
+     * @return the prediction with the highest scoring age bucket and gender
+     */
+    public static FacePrediction fromScores(float[] ageScores, float[] genderScores) {
+        int ageIndex = 0;
+        for (int i = 1; i < ageScores.length; i++) {
+            if (ageScores[i] > ageScores[ageIndex]) {
+                ageIndex = i;
+            }
+        }
+        AgeGenderDetection.Gender gender = genderScores[0] < genderScores[1]
+                ? AgeGenderDetection.Gender.MALE
+                : AgeGenderDetection.Gender.FEMALE;
+        return new FacePrediction(ageIndex, AgeGenderDetection.AGES[ageIndex], ageScores, gender, genderScores);
+    }
+
+    public int getAgeIndex() {
+        return ageIndex;
+    }
+
+    public String getAge() {
+        return age;
+    }
+
+    public float[] getAgeScores() {
+        return ageScores;
+    }
+
+    public AgeGenderDetection.Gender getGender() {
+        return gender;
+    }
+
+    public float[] getGenderScores() {
+        return genderScores;
+    }
+
+    public float getAgeConfidence() {
+        return ageScores[ageIndex];
+    }
+
+    public float getGenderConfidence() {
+        return Math.max(genderScores[0], genderScores[1]);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s:[%s]", gender, age);
+    }
+}
@@ -0,0 +1,110 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.FloatPointer;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Size;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+import static org.bytedeco.opencv.global.opencv_core.CV_8UC3;
+import static org.bytedeco.opencv.global.opencv_imgproc.INTER_LINEAR;
+import static org.bytedeco.opencv.global.opencv_imgproc.resize;
+
+/**
+ * Turns cropped faces into the input tensor shared by the age and gender models.
+ * <p>
+ * Each face is resized into a preallocated 8-bit image, then scaled to [0, 1] and rearranged from
+ * interleaved HWC to planar CHW in a single loop that writes straight into a preallocated NCHW batch.
+ * Channels are kept in the BGR order produced by OpenCV, which is the order NativeImageLoader
+ * fed the networks at training time. Once constructed no native memory and no arrays are allocated per face.
+ * <p>
+ * Instances are not thread-safe, every thread needs its own preprocessor.
+ *
+ * @see org.datavec.image.loader.NativeImageLoader
+ */
+public class FacePreprocessor {
+
+    private static final float SCALE = 1f / 255f;
+
+    private final int capacity;
+    private final int height;
+    private final int width;
+    private final int channels = 3;
+    private final int imageSize;
+
+    private final Size size;
+    private final BytePointer resizedData;
+    private final Mat resized;
+    private final byte[] pixels;
+    private final float[] planes;
+
+    private final INDArray buffer;
+    private final FloatPointer bufferPointer;
+    private final INDArray[] views;
+
+    public FacePreprocessor(int capacity, int height, int width) {
+        this.capacity = capacity;
+        this.height = height;
+        this.width = width;
+        this.imageSize = channels * height * width;
+
+        size = new Size(width, height);
+        resizedData = new BytePointer(imageSize);
+        resized = new Mat(height, width, CV_8UC3, resizedData);
+        pixels = new byte[imageSize];
+        planes = new float[imageSize];
+
+        buffer = Nd4j.create(DataType.FLOAT, capacity, channels, height, width);
+        bufferPointer = new FloatPointer(buffer.data().addressPointer());
+        views = new INDArray[capacity + 1];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Writes a face into the given row of the batch.
+     *
+     * @param index row of the batch, between 0 and {@link #getCapacity()} exclusive
+     * @param face  cropped 8-bit BGR face of any size
+     */
+    public void put(int index, Mat face) {
+        if (index < 0 || index >= capacity) {
+            throw new IndexOutOfBoundsException("Row " + index + " is outside of a batch of " + capacity);
+        }
+
+        // resize() reuses the destination as it already has the right size and type
+        resize(face, resized, size, 0, 0, INTER_LINEAR);
+        resizedData.position(0).get(pixels);
+
+        int plane = height * width;
+        for (int p = 0, i = 0; p < plane; p++) {
+            planes[p] = (pixels[i++] & 0xFF) * SCALE;
+            planes[plane + p] = (pixels[i++] & 0xFF) * SCALE;
+            planes[2 * plane + p] = (pixels[i++] & 0xFF) * SCALE;
+        }
+
+        bufferPointer.position((long) index * imageSize).put(planes, 0, imageSize);
+    }
+
+    /**
+     * @param count number of rows written with {@link #put(int, Mat)}
+     * @return a view over the first {@code count} rows of the batch, only valid until the next call to put()
+     */
+    public INDArray batch(int count) {
+        if (count < 1 || count > capacity) {
+            throw new IllegalArgumentException("Batch of " + count + " does not fit in a buffer of " + capacity);
+        }
+        if (count == capacity) {
+            return buffer;
+        }
+        if (views[count] == null) {
+            views[count] = buffer.get(NDArrayIndex.interval(0, count), NDArrayIndex.all(), NDArrayIndex.all(), NDArrayIndex.all());
+        }
+        return views[count];
+    }
+}
@@ -0,0 +1,248 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Follows faces across frames so that the age and gender models only run when something changed.
+ * <p>
+ * Detections are matched to existing tracks greedily by intersection over union. A track asks for inference when it
+ * is new, when {@code refreshInterval} frames went by since its last inference, or when its box moved or resized
+ * enough that its overlap with the box used for the last inference fell under {@code reinferIou}. Predictions of a
+ * track are smoothed with an exponential moving average over the class scores, which keeps labels from flickering.
+ * <p>
+ * Instances are not thread-safe, a tracker is meant to be driven by the classification stage only.
+ */
+public class FaceTracker {
+
+    private static final Logger logger = LoggerFactory.getLogger(FaceTracker.class);
+
+    public static final int DEFAULT_REFRESH_INTERVAL = Integer.getInteger("agegender.tracker.refreshInterval", 30);
+    public static final int DEFAULT_MAX_MISSED = Integer.getInteger("agegender.tracker.maxMissed", 5);
+    public static final double DEFAULT_MATCH_IOU = Double.parseDouble(System.getProperty("agegender.tracker.matchIou", "0.3"));
+    public static final double DEFAULT_REINFER_IOU = Double.parseDouble(System.getProperty("agegender.tracker.reinferIou", "0.5"));
+    public static final double DEFAULT_SMOOTHING = Double.parseDouble(System.getProperty("agegender.tracker.smoothing", "0.3"));
+
+    private final int refreshInterval;
+    private final int maxMissed;
+    private final double matchIou;
+    private final double reinferIou;
+    private final double smoothing;
+
+    private final List<Track> tracks = new ArrayList<>();
+    private int nextId = 1;
+    private long frameIndex = 0;
+
+    private long detections = 0;
+    private long inferences = 0;
+
+    public FaceTracker() {
+        this(DEFAULT_REFRESH_INTERVAL, DEFAULT_MAX_MISSED, DEFAULT_MATCH_IOU, DEFAULT_REINFER_IOU, DEFAULT_SMOOTHING);
+    }
+
+    /**
+     * @param refreshInterval frames after which a track is classified again even if it did not move
+     * @param maxMissed       frames a track survives without a matching detection
+     * @param matchIou        minimum overlap for a detection to continue a track
+     * @param reinferIou      overlap with the last classified box under which a track is classified again
+     * @param smoothing       weight of a new prediction in the moving average, 1 disables smoothing
+     */
+    public FaceTracker(int refreshInterval, int maxMissed, double matchIou, double reinferIou, double smoothing) {
+        this.refreshInterval = refreshInterval;
+        this.maxMissed = maxMissed;
+        this.matchIou = matchIou;
+        this.reinferIou = reinferIou;
+        this.smoothing = smoothing;
+    }
+
+    /**
+     * Matches the faces detected in a new frame against the current tracks.
+     *
+     * @param faces the cropped faces keyed by their location in the frame, as returned by {@link FaceDetector#detect}
+     * @return the tracks whose face has to be classified in this frame, see {@link #record(Track, FacePrediction)}
+     */
+    public List<Track> update(Map<Rect, Mat> faces) {
+        frameIndex++;
+        detections += faces.size();
+
+        List<Rect> unmatched = new ArrayList<>(faces.keySet());
+        List<Track> visible = new ArrayList<>();
+        for (Track track : tracks) {
+            track.face = null;
+        }
+
+        // greedy matching, best overlap first
+        while (!unmatched.isEmpty()) {
+            Track bestTrack = null;
+            Rect bestRect = null;
+            double bestIou = matchIou;
+            for (Track track : tracks) {
+                if (track.face != null) {
+                    continue;
+                }
+                for (Rect rect : unmatched) {
+                    double iou = iou(track.rect, rect);
+                    if (iou >= bestIou) {
+                        bestIou = iou;
+                        bestTrack = track;
+                        bestRect = rect;
+                    }
+                }
+            }
+            if (bestTrack == null) {
+                break;
+            }
+            bestTrack.rect = bestRect;
+            bestTrack.face = faces.get(bestRect);
+            bestTrack.missed = 0;
+            unmatched.remove(bestRect);
+            visible.add(bestTrack);
+        }
+
+        for (Rect rect : unmatched) {
+            Track track = new Track(nextId++, rect);
+            track.face = faces.get(rect);
+            tracks.add(track);
+            visible.add(track);
+        }
+
+        for (Iterator<Track> it = tracks.iterator(); it.hasNext(); ) {
+            Track track = it.next();
+            if (track.face == null && ++track.missed > maxMissed) {
+                logger.debug("Lost track {}", track.id);
+                it.remove();
+            }
+        }
+
+        List<Track> toClassify = new ArrayList<>();
+        for (Track track : visible) {
+            if (track.prediction == null
+                    || frameIndex - track.classifiedAt >= refreshInterval
+                    || iou(track.rect, track.classifiedRect) < reinferIou) {
+                toClassify.add(track);
+            }
+        }
+        return toClassify;
+    }
+
+    /**
+     * Folds a fresh prediction into the smoothed prediction of a track.
+     */
+    public void record(Track track, FacePrediction prediction) {
+        inferences++;
+        track.classifiedAt = frameIndex;
+        track.classifiedRect = track.rect;
+        if (track.prediction == null) {
+            track.ageScores = prediction.getAgeScores().clone();
+            track.genderScores = prediction.getGenderScores().clone();
+        } else {
+            blend(track.ageScores, prediction.getAgeScores());
+            blend(track.genderScores, prediction.getGenderScores());
+        }
+        track.prediction = FacePrediction.fromScores(track.ageScores.clone(), track.genderScores.clone());
+    }
+
+    /**
+     * @return the smoothed predictions of the tracks visible in the last frame, keyed by their current location
+     */
+    public Map<Rect, FacePrediction> predictions() {
+        Map<Rect, FacePrediction> predictions = new LinkedHashMap<>();
+        for (Track track : tracks) {
+            if (track.face != null && track.prediction != null) {
+                predictions.put(track.rect, track.prediction);
+            }
+        }
+        return predictions;
+    }
+
+    /**
+     * @return the tracks visible in the last frame, classified or not
+     */
+    public List<Track> visibleTracks() {
+        List<Track> visible = new ArrayList<>();
+        for (Track track : tracks) {
+            if (track.face != null) {
+                visible.add(track);
+            }
+        }
+        return visible;
+    }
+
+    /**
+     * @return share of detected faces that actually went through the models
+     */
+    public double getInferenceRatio() {
+        return detections == 0 ? 0 : (double) inferences / detections;
+    }
+
+    public int getTrackCount() {
+        return tracks.size();
+    }
+
+    private void blend(float[] smoothed, float[] scores) {
+        for (int i = 0; i < smoothed.length; i++) {
+            smoothed[i] += (float) (smoothing * (scores[i] - smoothed[i]));
+        }
+    }
+
+    static double iou(Rect a, Rect b) {
+        int x1 = Math.max(a.x(), b.x());
+        int y1 = Math.max(a.y(), b.y());
+        int x2 = Math.min(a.x() + a.width(), b.x() + b.width());
+        int y2 = Math.min(a.y() + a.height(), b.y() + b.height());
+        if (x2 <= x1 || y2 <= y1) {
+            return 0;
+        }
+        double intersection = (double) (x2 - x1) * (y2 - y1);
+        double union = (double) a.width() * a.height() + (double) b.width() * b.height() - intersection;
+        return intersection / union;
+    }
+
+    /**
+     * A face followed across frames.
+     */
+    public static class Track {
+        private final int id;
+        private Rect rect;
+        private Mat face;
+        private int missed;
+
+        private FacePrediction prediction;
+        private float[] ageScores;
+        private float[] genderScores;
+        private long classifiedAt;
+        private Rect classifiedRect;
+
+        private Track(int id, Rect rect) {
+            this.id = id;
+            this.rect = rect;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public Rect getRect() {
+            return rect;
+        }
+
+        /**
+         * @return the face cropped from the last frame, only valid until that frame is released
+         */
+        public Mat getFace() {
+            return face;
+        }
+
+        public FacePrediction getPrediction() {
+            return prediction;
+        }
+    }
+}
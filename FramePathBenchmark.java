@@ -0,0 +1,67 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The whole per-frame path, detection, prediction, annotation and resizing for display, on stored frames holding
+ * 0, 1, 5 and 20 faces. Run through {@link BenchmarkRunner}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FramePathBenchmark {
+
+    @Param({"0", "1", "5", "20"})
+    public int faces;
+
+    private Mat frame;
+    private Mat scratch;
+    private FaceDetector detector;
+    private AgeGenderPredictor predictor;
+    private VideoPanel panel;
+    private Thread warmedUpOn;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<Mat> crops = BenchmarkData.faces();
+        frame = BenchmarkData.compose(BenchmarkData.frames().get(0), crops, faces);
+        scratch = new Mat();
+        detector = FaceDetector.create(FaceDetector.DEFAULT_BACKEND, new DetectionSettings().setRoiTracking(false));
+        predictor = AgeGenderPredictor.restore(AgeGenderPredictor.DEFAULT_BATCH_SIZE);
+        panel = new VideoPanel();
+        panel.setSize(1264, 681);
+    }
+
+    /**
+     * Warms up on the thread running the iteration, the inference workspace of the predictor is per thread.
+     */
+    @Setup(Level.Iteration)
+    public void warmUp() {
+        if (warmedUpOn != Thread.currentThread()) {
+            predictor.warmUp();
+            warmedUpOn = Thread.currentThread();
+        }
+    }
+
+    @Benchmark
+    public void frame(Blackhole blackhole) {
+        frame.copyTo(scratch);
+        Map<Rect, Mat> detected = detector.detect(scratch);
+        Map<Rect, FacePrediction> predictions = predictor.predict(detected);
+        BenchmarkData.close(detected);
+        AgeGenderDetection.annotate(scratch, predictions);
+        panel.showFrame(scratch);
+        blackhole.consume(predictions);
+        blackhole.consume(panel);
+    }
+}
@@ -0,0 +1,389 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameGrabber;
+import org.bytedeco.javacv.OpenCVFrameConverter;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs capture, face detection, classification and rendering on a dedicated thread each, connected by
+ * {@link DropOldestQueue}s.
+ * <p>
+ * Every captured frame is handed to both the detection stage and the render stage. Rendering draws the most recent
+ * predictions on top of each frame, so the display keeps up with the camera while detection and classification
+ * run as fast as they can on the latest frame available to them. Between detection and classification a
+ * {@link FaceTracker} keeps faces that were already classified out of the models, and a {@link LoadShedder} lowers
+ * the quality when the stages fall behind the target frame rate.
+ * <p>
+ * Every copy of a frame, and every face cropped from it, is closed by the last stage that uses it, so that the native
+ * memory of the pipeline stays the same however long it runs.
+ */
+public class FramePipeline {
+
+    private static final Logger logger = LoggerFactory.getLogger(FramePipeline.class);
+
+    public static final int DEFAULT_QUEUE_CAPACITY = Integer.getInteger("agegender.pipeline.queueCapacity", 1);
+    private static final long REPORT_INTERVAL_MS = 10_000;
+
+    private final FrameGrabber frameGrabber;
+    private final FaceDetector faceDetector;
+    private final AgeGenderPredictor predictor;
+    private final FaceTracker tracker = new FaceTracker();
+    private final LoadShedder shedder = new LoadShedder();
+    private final BiConsumer<Mat, Map<Rect, FacePrediction>> renderer;
+
+    private final DropOldestQueue<Mat> detectQueue;
+    private final DropOldestQueue<DetectedFrame> classifyQueue;
+    private final DropOldestQueue<Mat> renderQueue;
+
+    private volatile Map<Rect, FacePrediction> latestPredictions = Collections.emptyMap();
+
+    private final AtomicLong captured = new AtomicLong();
+    private final AtomicLong detected = new AtomicLong();
+    private final AtomicLong classified = new AtomicLong();
+    private final AtomicLong rendered = new AtomicLong();
+
+    private volatile Runnable firstPredictionListener;
+    private volatile StartupTimer startupTimer;
+    private volatile PipelineMetrics metrics;
+
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean running = false;
+
+    public FramePipeline(FrameGrabber frameGrabber, FaceDetector faceDetector, AgeGenderPredictor predictor,
+                         BiConsumer<Mat, Map<Rect, FacePrediction>> renderer) {
+        this(frameGrabber, faceDetector, predictor, renderer, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param frameGrabber  started grabber to read frames from
+     * @param faceDetector  detector used by the detection stage
+     * @param predictor     predictor used by the classification stage
+     * @param renderer      called on the render thread with every captured frame and the latest predictions
+     * @param queueCapacity capacity of the queues between stages, 1 always processes the latest frame
+     */
+    public FramePipeline(FrameGrabber frameGrabber, FaceDetector faceDetector, AgeGenderPredictor predictor,
+                         BiConsumer<Mat, Map<Rect, FacePrediction>> renderer, int queueCapacity) {
+        this.frameGrabber = frameGrabber;
+        this.faceDetector = faceDetector;
+        this.predictor = predictor;
+        this.renderer = renderer;
+        if (!faceDetector.getSettings().isFast()) {
+            // the full resolution path ignores the detection scale
+            shedder.disable(LoadShedder.Level.LOW_DETECTION_RESOLUTION);
+        }
+
+        detectQueue = new DropOldestQueue<>(queueCapacity, Mat::close);
+        classifyQueue = new DropOldestQueue<>(queueCapacity, DetectedFrame::release);
+        renderQueue = new DropOldestQueue<>(queueCapacity, Mat::close);
+    }
+
+    /**
+     * @param listener called once, on the classification thread, after the first frame went through classification
+     */
+    public void setFirstPredictionListener(Runnable listener) {
+        this.firstPredictionListener = listener;
+    }
+
+    /**
+     * @param timer times the warm-up of the classification stage and logs the time to the first prediction
+     */
+    public void setStartupTimer(StartupTimer timer) {
+        this.startupTimer = timer;
+        this.firstPredictionListener = timer::firstPrediction;
+    }
+
+    /**
+     * @param metrics records the grab, detect and render latencies, frames and dropped frames from now on
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        metrics.setDroppedFrames(() -> getDroppedBeforeDetect() + getDroppedBeforeClassify() + getDroppedBeforeRender());
+        metrics.setLoadShedder(shedder);
+        this.metrics = metrics;
+    }
+
+    public void start() {
+        running = true;
+        threads.add(new Thread(this::capture, "pipeline-capture"));
+        threads.add(new Thread(this::detect, "pipeline-detect"));
+        threads.add(new Thread(this::classify, "pipeline-classify"));
+        threads.add(new Thread(this::render, "pipeline-render"));
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the stages, waiting up to 5 seconds for each of them.
+     *
+     * @return whether every stage exited, the detector and the queued frames may still be in use otherwise
+     */
+    public boolean stop() {
+        running = false;
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        boolean exited = true;
+        for (Thread thread : threads) {
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (thread.isAlive()) {
+                logger.warn("Stage {} did not stop in time", thread.getName());
+                exited = false;
+            }
+        }
+        if (!exited) {
+            return false;
+        }
+        threads.clear();
+        detectQueue.clear();
+        classifyQueue.clear();
+        renderQueue.clear();
+        return true;
+    }
+
+    public LoadShedder getLoadShedder() {
+        return shedder;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return frames captured that never reached the detection stage
+     */
+    public long getDroppedBeforeDetect() {
+        return detectQueue.getDropped();
+    }
+
+    /**
+     * @return frames with detected faces that never reached the classification stage
+     */
+    public long getDroppedBeforeClassify() {
+        return classifyQueue.getDropped();
+    }
+
+    /**
+     * @return frames captured that were never displayed
+     */
+    public long getDroppedBeforeRender() {
+        return renderQueue.getDropped();
+    }
+
+    private void capture() {
+        OpenCVFrameConverter.ToMat converter = new OpenCVFrameConverter.ToMat();
+        int fullWidth = frameGrabber.getImageWidth();
+        int fullHeight = frameGrabber.getImageHeight();
+        boolean lowResolution = false;
+        long lastReport = System.currentTimeMillis();
+        while (running) {
+            try {
+                boolean low = shedder.lowCaptureResolution();
+                if (low != lowResolution) {
+                    try {
+                        restartGrabber(low ? LoadShedder.CAPTURE_WIDTH : fullWidth,
+                                low ? LoadShedder.CAPTURE_HEIGHT : fullHeight);
+                        lowResolution = low;
+                    } catch (FrameGrabber.Exception e) {
+                        logger.error("Unable to change the capture resolution", e);
+                        if (low) {
+                            // the camera refuses the lower resolution, the shedder must not count on it
+                            shedder.disable(LoadShedder.Level.LOW_CAPTURE_RESOLUTION);
+                        }
+                        // back to the resolution the flag still describes, retried on the next frame otherwise
+                        restartGrabber(lowResolution ? LoadShedder.CAPTURE_WIDTH : fullWidth,
+                                lowResolution ? LoadShedder.CAPTURE_HEIGHT : fullHeight);
+                    }
+                }
+                long start = System.nanoTime();
+                Frame frame = frameGrabber.grab();
+                if (frame == null) {
+                    continue;
+                }
+                PipelineMetrics metrics = this.metrics;
+                if (metrics != null) {
+                    metrics.record(PipelineMetrics.Stage.GRAB, start);
+                }
+                // the grabber reuses its buffer for the next frame, so each stage gets its own copy
+                Mat mat = converter.convert(frame);
+                detectQueue.put(mat.clone());
+                renderQueue.put(mat.clone());
+                captured.incrementAndGet();
+            } catch (FrameGrabber.Exception e) {
+                logger.error("Error when grabbing the frame", e);
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - lastReport >= REPORT_INTERVAL_MS) {
+                report(now - lastReport);
+                lastReport = now;
+            }
+        }
+    }
+
+    /**
+     * Reopens the camera at another resolution, only the capture thread touches the grabber.
+     */
+    private void restartGrabber(int width, int height) throws FrameGrabber.Exception {
+        logger.info("Restarting the frame grabber at {}x{}", width, height);
+        frameGrabber.stop();
+        frameGrabber.setImageWidth(width);
+        frameGrabber.setImageHeight(height);
+        frameGrabber.start();
+    }
+
+    private void detect() {
+        DetectionSettings settings = faceDetector.getSettings();
+        double baseScale = settings.getDetectScale();
+        long frame = 0;
+        while (running) {
+            Mat mat;
+            try {
+                mat = detectQueue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (!shedder.shouldDetect(frame++)) {
+                // the render stage still shows it, with the predictions of the previous frame
+                mat.close();
+                continue;
+            }
+            try {
+                // applied on this thread, the detector reads its settings here
+                settings.setDetectScale(shedder.detectScale(baseScale));
+                long start = System.nanoTime();
+                Map<Rect, Mat> faces = faceDetector.detect(mat);
+                shedder.detected(System.nanoTime() - start);
+                PipelineMetrics metrics = this.metrics;
+                if (metrics != null) {
+                    metrics.record(PipelineMetrics.Stage.DETECT, start);
+                    metrics.frameDetected(faces.size());
+                }
+                classifyQueue.put(new DetectedFrame(mat, faces));
+                detected.incrementAndGet();
+            } catch (Exception e) {
+                logger.error("Unexpected error occurred while detecting faces", e);
+                mat.close();
+            }
+        }
+    }
+
+    private void classify() {
+        // the inference workspace is per thread, warming up anywhere else would leave it to the first frame
+        StartupTimer timer = startupTimer;
+        if (timer != null) {
+            timer.time("warm-up", predictor::warmUp);
+        } else {
+            predictor.warmUp();
+        }
+        while (running) {
+            DetectedFrame detectedFrame;
+            try {
+                detectedFrame = classifyQueue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                long start = System.nanoTime();
+                // only new, stale or moved faces go through the models, the others keep their smoothed prediction
+                List<FaceTracker.Track> toClassify = shedder.selectFaces(tracker.update(detectedFrame.faces));
+                if (!toClassify.isEmpty()) {
+                    List<Mat> faces = new ArrayList<>(toClassify.size());
+                    for (FaceTracker.Track track : toClassify) {
+                        faces.add(track.getFace());
+                    }
+                    List<FacePrediction> predictions = predictor.predict(faces);
+                    for (int i = 0; i < toClassify.size(); i++) {
+                        tracker.record(toClassify.get(i), predictions.get(i));
+                    }
+                }
+                latestPredictions = tracker.predictions();
+                shedder.classified(System.nanoTime() - start);
+                classified.incrementAndGet();
+                Runnable listener = firstPredictionListener;
+                if (listener != null) {
+                    firstPredictionListener = null;
+                    listener.run();
+                }
+            } catch (Exception e) {
+                logger.error("Unexpected error occurred while classifying faces", e);
+            } finally {
+                detectedFrame.release();
+            }
+        }
+    }
+
+    private void render() {
+        while (running) {
+            Mat mat;
+            try {
+                mat = renderQueue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                long start = System.nanoTime();
+                renderer.accept(mat, latestPredictions);
+                PipelineMetrics metrics = this.metrics;
+                if (metrics != null) {
+                    metrics.record(PipelineMetrics.Stage.RENDER, start);
+                    metrics.frameDisplayed();
+                }
+                rendered.incrementAndGet();
+            } catch (Exception e) {
+                logger.error("Unexpected error occurred while rendering a frame", e);
+            } finally {
+                mat.close();
+            }
+        }
+    }
+
+    private void report(long elapsedMs) {
+        double seconds = elapsedMs / 1000.0;
+        logger.info("Pipeline fps - capture: {}, detect: {}, classify: {}, render: {}",
+                String.format("%.1f", captured.getAndSet(0) / seconds),
+                String.format("%.1f", detected.getAndSet(0) / seconds),
+                String.format("%.1f", classified.getAndSet(0) / seconds),
+                String.format("%.1f", rendered.getAndSet(0) / seconds));
+        logger.info("Pipeline dropped frames - before detect: {}, before classify: {}, before render: {}",
+                getDroppedBeforeDetect(), getDroppedBeforeClassify(), getDroppedBeforeRender());
+        logger.info("Tracking {} faces, {}% of detected faces classified, load shedding level {}",
+                tracker.getTrackCount(), String.format("%.1f", 100 * tracker.getInferenceRatio()), shedder.getLevel());
+    }
+
+    private static class DetectedFrame {
+        private final Mat mat;
+        private final Map<Rect, Mat> faces;
+
+        private DetectedFrame(Mat mat, Map<Rect, Mat> faces) {
+            this.mat = mat;
+            this.faces = faces;
+        }
+
+        /**
+         * Frees the frame and the crops, the tracker only keeps the rectangles of the faces.
+         */
+        private void release() {
+            for (Mat face : faces.values()) {
+                face.close();
+            }
+            mat.close();
+        }
+    }
+}
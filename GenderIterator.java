@@ -21,12 +21,13 @@ import java.io.IOException;
 import java.net.URL;
 import java.nio.file.Paths;
 import java.util.Random;
+import java.util.function.LongFunction;
 
 public class GenderIterator {
     private static final Logger log = org.slf4j.LoggerFactory.getLogger(GenderIterator.class);
 
-    private static final int height = 224;
-    private static final int width = 224;
+    private static int height = ModelInputSize.DEFAULT;
+    private static int width = ModelInputSize.DEFAULT;
     private static final int channels = 3;
     private static final int numClasses = 2;
 
@@ -42,18 +43,35 @@ public class GenderIterator {
     private static ParentPathLabelGenerator labelMaker = new ParentPathLabelGenerator();
     private static InputSplit trainData,testData;
     private static int batchSize;
+    private static File sourceDir;
+    private static int trainPercentage;
 
     //scale input to 0 - 1
     private static DataNormalization scaler = new ImagePreProcessingScaler(0, 1);
-    private static ImageTransform transform;
+    private static LongFunction<ImageTransform> augmentation;
 
     public GenderIterator() throws IOException {
     }
 
+    /**
+     * Sets the side of the square images the iterators produce, {@link ModelInputSize#DEFAULT} unless set.
+     */
+    public static void setInputSize(int inputSize) {
+        height = inputSize;
+        width = inputSize;
+    }
+
     private static DataSetIterator makeIterator(InputSplit split, boolean training) throws IOException {
+        if (DatasetCache.ENABLED) {
+            DatasetCache cache = DatasetCache.open(sourceDir, "gender", height, trainPercentage, 123);
+            DataSetIterator iter = new CachedDataSetIterator(cache, training, batchSize,
+                    training ? augmentation : null, 123);
+            iter.setPreProcessor(scaler);
+            return iter;
+        }
         ImageRecordReader recordReader = new ImageRecordReader(height,width,channels,labelMaker);
-        if (training && transform != null){
-            recordReader.initialize(split,transform);
+        if (training && augmentation != null){
+            recordReader.initialize(split,augmentation.apply(123));
         }else{
             recordReader.initialize(split);
         }
@@ -71,8 +89,11 @@ public class GenderIterator {
         return makeIterator(testData, false);
     }
 
-    public static void setup(int batchSizeArg, int trainPerc, ImageTransform imageTransform) throws IOException {
-        transform=imageTransform;
+    /**
+     * @param augmentationArg creates the augmentation of the training images from a seed, e.g. {@link Augmentation#create}
+     */
+    public static void setup(int batchSizeArg, int trainPerc, LongFunction<ImageTransform> augmentationArg) throws IOException {
+        augmentation=augmentationArg;
         setup(batchSizeArg,trainPerc);
     }
 
@@ -88,15 +109,21 @@ public class GenderIterator {
             downloadAndUnzip();
         }
         batchSize = batchSizeArg;
+        sourceDir = parentDir;
+        trainPercentage = trainPerc;
+        if (trainPerc >= 100) {
+            throw new IllegalArgumentException("Percentage of data set aside for training has to be less than 100%. Test percentage = 100 - training percentage, has to be greater than 0");
+        }
+        if (DatasetCache.ENABLED) {
+            // the split is stored in the dataset cache, no need to walk the directory tree
+            return;
+        }
 
         //Files in directories under the parent dir that have "allowed extensions" split needs a random number generator for reproducibility when splitting the files into train and test
         FileSplit filesInDir = new FileSplit(parentDir, allowedExtensions, rng);
 
         //The balanced path filter gives you fine tune control of the min/max cases to load for each class
         BalancedPathFilter pathFilter = new BalancedPathFilter(rng, allowedExtensions, labelMaker);
-        if (trainPerc >= 100) {
-            throw new IllegalArgumentException("Percentage of data set aside for training has to be less than 100%. Test percentage = 100 - training percentage, has to be greater than 0");
-        }
 
         //Split the image files into train and test
         InputSplit[] filesInDirSplit = filesInDir.sample(pathFilter, trainPerc, 100-trainPerc);
@@ -0,0 +1,31 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+/**
+ * Training hyperparameters of {@link AgeModel}, {@link GenderModel} and {@link MultiTaskModel}, overridable with system properties so that
+ * {@link SweepRunner} can try configurations without editing the trainers. Unset, the trainers use their defaults.
+ */
+public final class Hyperparameters {
+
+    public static final double LEARNING_RATE = Double.parseDouble(System.getProperty("agegender.train.learningRate", "0.001"));
+    public static final double L2 = Double.parseDouble(System.getProperty("agegender.train.l2", "0.0005"));
+    /** Scales the number of filters and units of every hidden layer. */
+    public static final double WIDTH_MULTIPLIER = Double.parseDouble(System.getProperty("agegender.train.widthMultiplier", "1"));
+
+    private Hyperparameters() {
+    }
+
+    public static int batchSize(int defaultBatchSize) {
+        return Integer.getInteger("agegender.train.batchSize", defaultBatchSize);
+    }
+
+    public static int epochs(int defaultEpochs) {
+        return Integer.getInteger("agegender.train.epochs", defaultEpochs);
+    }
+
+    /**
+     * @return the width of a hidden layer scaled by {@link #WIDTH_MULTIPLIER}
+     */
+    public static int width(int nOut) {
+        return Math.max(1, (int) Math.round(nOut * WIDTH_MULTIPLIER));
+    }
+}
@@ -0,0 +1,413 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool of inference workers shared by many producers of faces.
+ * <p>
+ * Faces submitted from any thread are queued, and each worker takes as many of them as fit in a batch, waiting at
+ * most {@code maxDelayMs} for a batch to fill up. Faces from different images therefore share a forward pass.
+ * Every worker owns its own copy of the networks as a network must not run on several threads at once.
+ * <p>
+ * Faces are queued per stream. A batch is filled round-robin, one face per stream at a time, visiting first the
+ * streams whose oldest face waited the longest, so a busy stream cannot starve a quiet one. A stream holds at most
+ * {@code streamCapacity} faces, further faces evict its oldest one, and faces that waited longer than
+ * {@code maxLatencyMs} are failed with a {@link TimeoutException} instead of being classified too late.
+ * <p>
+ * Once {@code maxQueueDepth} faces are waiting across all streams, new faces are rejected right away with a
+ * {@link RejectedExecutionException}, so callers can shed load instead of seeing latency grow without bound.
+ */
+public class InferenceScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(InferenceScheduler.class);
+
+    public static final String DEFAULT_STREAM = "default";
+    public static final int DEFAULT_WORKERS = Integer.getInteger("agegender.inference.workers", 2);
+    public static final long DEFAULT_MAX_DELAY_MS = Long.getLong("agegender.inference.maxDelayMs", 5);
+    public static final long DEFAULT_MAX_LATENCY_MS = Long.getLong("agegender.inference.maxLatencyMs", 0);
+    public static final int DEFAULT_STREAM_CAPACITY = Integer.getInteger("agegender.inference.streamCapacity", Integer.MAX_VALUE);
+    public static final int DEFAULT_MAX_QUEUE_DEPTH = Integer.getInteger("agegender.inference.maxQueueDepth", Integer.MAX_VALUE);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Map<String, StreamQueue> streams = new LinkedHashMap<>();
+    private int pending = 0;
+
+    private final List<Thread> workers = new ArrayList<>();
+    private final int batchSize;
+    private final long maxDelayNanos;
+    private final long maxLatencyNanos;
+    private final int streamCapacity;
+    private final int maxQueueDepth;
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile boolean running = true;
+
+    public InferenceScheduler(MultiLayerNetwork ageModel, MultiLayerNetwork genderModel) {
+        this(ageModel, genderModel, DEFAULT_WORKERS, AgeGenderPredictor.DEFAULT_BATCH_SIZE, DEFAULT_MAX_DELAY_MS,
+                DEFAULT_MAX_LATENCY_MS, DEFAULT_STREAM_CAPACITY, DEFAULT_MAX_QUEUE_DEPTH);
+    }
+
+    public InferenceScheduler(AgeGenderPredictor predictor) {
+        this(predictor, DEFAULT_WORKERS, DEFAULT_MAX_DELAY_MS, DEFAULT_MAX_LATENCY_MS, DEFAULT_STREAM_CAPACITY,
+                DEFAULT_MAX_QUEUE_DEPTH);
+    }
+
+    public InferenceScheduler(MultiLayerNetwork ageModel, MultiLayerNetwork genderModel,
+                              int workerCount, int batchSize, long maxDelayMs, long maxLatencyMs, int streamCapacity) {
+        this(ageModel, genderModel, workerCount, batchSize, maxDelayMs, maxLatencyMs, streamCapacity,
+                DEFAULT_MAX_QUEUE_DEPTH);
+    }
+
+    /**
+     * @param ageModel       age network, cloned for every worker but the first
+     * @param genderModel    gender network, cloned for every worker but the first
+     * @param workerCount    number of inference threads
+     * @param batchSize      maximum number of faces per forward pass
+     * @param maxDelayMs     how long a worker waits for more faces before running a partial batch
+     * @param maxLatencyMs   how long a face may wait in its queue before it is failed, 0 to wait forever
+     * @param streamCapacity maximum number of faces queued per stream before the oldest one is evicted
+     * @param maxQueueDepth  maximum number of faces queued across all streams before new faces are rejected
+     */
+    public InferenceScheduler(MultiLayerNetwork ageModel, MultiLayerNetwork genderModel,
+                              int workerCount, int batchSize, long maxDelayMs, long maxLatencyMs, int streamCapacity,
+                              int maxQueueDepth) {
+        this(new AgeGenderPredictor(ageModel, genderModel, batchSize), workerCount, maxDelayMs, maxLatencyMs,
+                streamCapacity, maxQueueDepth);
+    }
+
+    /**
+     * @param predictor      predictor of the first worker, every other worker runs a {@link AgeGenderPredictor#copy()}
+     *                       of it, its batch size is the maximum number of faces per forward pass
+     * @param workerCount    number of inference threads
+     * @param maxDelayMs     how long a worker waits for more faces before running a partial batch
+     * @param maxLatencyMs   how long a face may wait in its queue before it is failed, 0 to wait forever
+     * @param streamCapacity maximum number of faces queued per stream before the oldest one is evicted
+     * @param maxQueueDepth  maximum number of faces queued across all streams before new faces are rejected
+     */
+    public InferenceScheduler(AgeGenderPredictor predictor, int workerCount, long maxDelayMs, long maxLatencyMs,
+                              int streamCapacity, int maxQueueDepth) {
+        this.batchSize = predictor.getBatchSize();
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatencyMs);
+        this.streamCapacity = streamCapacity;
+        this.maxQueueDepth = maxQueueDepth;
+
+        for (int i = 0; i < workerCount; i++) {
+            AgeGenderPredictor workerPredictor = i == 0 ? predictor : predictor.copy();
+            Thread worker = new Thread(() -> work(workerPredictor), "inference-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        logger.info("Started {} inference workers with batches of up to {} faces", workerCount, batchSize);
+    }
+
+    /**
+     * Queues a face for classification on the default stream.
+     *
+     * @see #submit(String, Mat)
+     */
+    public CompletableFuture<FacePrediction> submit(Mat face) {
+        return submit(DEFAULT_STREAM, face);
+    }
+
+    /**
+     * Queues a face for classification.
+     *
+     * @param stream name of the source of the face, faces of different streams are scheduled fairly
+     * @param face   cropped face, it must stay valid until the returned future completes
+     * @return the prediction once a worker ran the face through the models, or a future failed with a
+     * {@link RejectedExecutionException} right away when the scheduler is full
+     */
+    public CompletableFuture<FacePrediction> submit(String stream, Mat face) {
+        CompletableFuture<FacePrediction> future = new CompletableFuture<>();
+        if (!running) {
+            future.completeExceptionally(new IllegalStateException("Inference scheduler is shut down"));
+            return future;
+        }
+
+        Request evicted = null;
+        lock.lock();
+        try {
+            if (pending >= maxQueueDepth) {
+                rejected.incrementAndGet();
+                future.completeExceptionally(new RejectedExecutionException(
+                        "Inference queue is full with " + pending + " faces"));
+                return future;
+            }
+            StreamQueue queue = streams.computeIfAbsent(stream, StreamQueue::new);
+            if (queue.requests.size() >= streamCapacity) {
+                evicted = queue.requests.poll();
+                queue.dropped.incrementAndGet();
+                pending--;
+            }
+            queue.requests.add(new Request(face, queue, future));
+            queue.submitted.incrementAndGet();
+            pending++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (evicted != null) {
+            evicted.future.completeExceptionally(new TimeoutException("Evicted by a newer face of stream " + stream));
+        }
+        return future;
+    }
+
+    /**
+     * @return number of faces waiting for a worker, all streams included
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return pending;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return faces rejected because the scheduler was full
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the counters of every stream that submitted a face so far
+     */
+    public List<StreamStats> getStreamStats() {
+        lock.lock();
+        try {
+            List<StreamStats> stats = new ArrayList<>(streams.size());
+            for (StreamQueue queue : streams.values()) {
+                stats.add(new StreamStats(queue.name, queue.requests.size(), queue.submitted.get(),
+                        queue.completed.get(), queue.dropped.get(), queue.expired.get()));
+            }
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        List<Request> remaining = new ArrayList<>();
+        lock.lock();
+        try {
+            for (StreamQueue queue : streams.values()) {
+                remaining.addAll(queue.requests);
+                queue.requests.clear();
+            }
+            pending = 0;
+        } finally {
+            lock.unlock();
+        }
+        for (Request request : remaining) {
+            request.future.completeExceptionally(new IllegalStateException("Inference scheduler is shut down"));
+        }
+    }
+
+    private void work(AgeGenderPredictor predictor) {
+        List<Request> batch = new ArrayList<>(batchSize);
+        List<Request> expired = new ArrayList<>();
+        List<Mat> faces = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                takeBatch(batch, expired);
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                for (Request request : expired) {
+                    request.future.completeExceptionally(new TimeoutException("Face waited longer than the latency bound"));
+                }
+                expired.clear();
+            }
+            if (batch.isEmpty()) {
+                continue;
+            }
+
+            try {
+                for (Request request : batch) {
+                    faces.add(request.face);
+                }
+                List<FacePrediction> predictions = predictor.predict(faces);
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).queue.completed.incrementAndGet();
+                    batch.get(i).future.complete(predictions.get(i));
+                }
+            } catch (Exception e) {
+                logger.error("Error when running a batch of {} faces", batch.size(), e);
+                for (Request request : batch) {
+                    request.future.completeExceptionally(e);
+                }
+            } finally {
+                batch.clear();
+                faces.clear();
+            }
+        }
+    }
+
+    /**
+     * Waits for a full batch or for the oldest face to have waited {@code maxDelayMs}, then fills the batch fairly.
+     */
+    private void takeBatch(List<Request> batch, List<Request> expired) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                while (pending == 0) {
+                    notEmpty.await();
+                }
+                long waitNanos = oldestEnqueueTime() + maxDelayNanos - System.nanoTime();
+                if (pending >= batchSize || waitNanos <= 0) {
+                    break;
+                }
+                notEmpty.awaitNanos(waitNanos);
+            }
+
+            long now = System.nanoTime();
+            List<StreamQueue> order = new ArrayList<>();
+            for (StreamQueue queue : streams.values()) {
+                if (maxLatencyNanos > 0) {
+                    while (!queue.requests.isEmpty() && now - queue.requests.peek().enqueuedAt > maxLatencyNanos) {
+                        expired.add(queue.requests.poll());
+                        queue.expired.incrementAndGet();
+                        pending--;
+                    }
+                }
+                if (!queue.requests.isEmpty()) {
+                    order.add(queue);
+                }
+            }
+            order.sort(Comparator.comparingLong(queue -> queue.requests.peek().enqueuedAt));
+
+            boolean took = true;
+            while (batch.size() < batchSize && took) {
+                took = false;
+                for (StreamQueue queue : order) {
+                    if (batch.size() == batchSize) {
+                        break;
+                    }
+                    Request request = queue.requests.poll();
+                    if (request != null) {
+                        batch.add(request);
+                        pending--;
+                        took = true;
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long oldestEnqueueTime() {
+        long oldest = Long.MAX_VALUE;
+        for (StreamQueue queue : streams.values()) {
+            Request head = queue.requests.peek();
+            if (head != null && head.enqueuedAt < oldest) {
+                oldest = head.enqueuedAt;
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * Counters of a single stream.
+     */
+    public static class StreamStats {
+        private final String stream;
+        private final int queueDepth;
+        private final long submitted;
+        private final long completed;
+        private final long dropped;
+        private final long expired;
+
+        private StreamStats(String stream, int queueDepth, long submitted, long completed, long dropped, long expired) {
+            this.stream = stream;
+            this.queueDepth = queueDepth;
+            this.submitted = submitted;
+            this.completed = completed;
+            this.dropped = dropped;
+            this.expired = expired;
+        }
+
+        public String getStream() {
+            return stream;
+        }
+
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public long getSubmitted() {
+            return submitted;
+        }
+
+        public long getCompleted() {
+            return completed;
+        }
+
+        /**
+         * @return faces evicted because the stream went over its capacity
+         */
+        public long getDropped() {
+            return dropped;
+        }
+
+        /**
+         * @return faces failed because they waited longer than the latency bound
+         */
+        public long getExpired() {
+            return expired;
+        }
+    }
+
+    private static class StreamQueue {
+        private final String name;
+        private final ArrayDeque<Request> requests = new ArrayDeque<>();
+        private final AtomicLong submitted = new AtomicLong();
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong expired = new AtomicLong();
+
+        private StreamQueue(String name) {
+            this.name = name;
+        }
+    }
+
+    private static class Request {
+        private final Mat face;
+        private final StreamQueue queue;
+        private final CompletableFuture<FacePrediction> future;
+        private final long enqueuedAt = System.nanoTime();
+
+        private Request(Mat face, StreamQueue queue, CompletableFuture<FacePrediction> future) {
+            this.face = face;
+            this.queue = queue;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.bytedeco.opencv.global.opencv_core.CV_8UC1;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.IMREAD_COLOR;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imdecode;
+
+/**
+ * Local HTTP endpoint for the age and gender models.
+ * <p>
+ * {@code POST /predict} takes an encoded image (JPEG, PNG, ...) as request body, detects the faces in it and
+ * answers with their locations, age buckets, genders and scores as JSON. With {@code ?cropped=true} the body is
+ * taken as an already cropped face and detection is skipped. Faces of concurrent requests are grouped into
+ * batches by an {@link InferenceScheduler}, which waits at most {@code agegender.inference.maxDelayMs} for a
+ * batch to fill. When its queue is full a request is answered with 503 right away rather than queued.
+ * {@code GET /health} reports the queue depth.
+ * <p>
+ * Usage: {@code InferenceServer [port]}, see {@link LoadGenerator} to load test it.
+ */
+public class InferenceServer {
+
+    private static final Logger logger = LoggerFactory.getLogger(InferenceServer.class);
+
+    public static final int DEFAULT_PORT = Integer.getInteger("agegender.server.port", 8080);
+    private static final int HANDLER_THREADS = Integer.getInteger("agegender.server.threads",
+            Runtime.getRuntime().availableProcessors() * 2);
+    private static final int MAX_QUEUE_DEPTH = Integer.getInteger("agegender.server.maxQueueDepth", 256);
+    private static final long REQUEST_TIMEOUT_MS = Long.getLong("agegender.server.timeoutMs", 2_000);
+    private static final String STREAM = "http";
+    private static final long STOP_TIMEOUT_SECONDS = 5;
+
+    private final InferenceScheduler scheduler;
+    private final PerThreadFaceDetectors detectors;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    public static void main(String[] args) throws Exception {
+        NativeMemory.configure();
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+
+        AgeGenderPredictor predictor = AgeGenderPredictor.restore(AgeGenderPredictor.DEFAULT_BATCH_SIZE);
+        InferenceScheduler scheduler = new InferenceScheduler(predictor, InferenceScheduler.DEFAULT_WORKERS,
+                InferenceScheduler.DEFAULT_MAX_DELAY_MS, 0, Integer.MAX_VALUE, MAX_QUEUE_DEPTH);
+        InferenceServer server = new InferenceServer(scheduler, port);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            logger.info("Stopping InferenceServer");
+            server.stop();
+            scheduler.shutdown();
+        }));
+        server.start();
+    }
+
+    public InferenceServer(InferenceScheduler scheduler, int port) throws IOException {
+        this.scheduler = scheduler;
+        // requests are unrelated to each other, searching around previous faces would only miss faces
+        this.detectors = new PerThreadFaceDetectors(() ->
+                FaceDetector.create(FaceDetector.DEFAULT_BACKEND, new DetectionSettings().setRoiTracking(false)));
+        this.server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        this.executor = Executors.newFixedThreadPool(HANDLER_THREADS);
+
+        server.createContext("/predict", this::handlePredict);
+        server.createContext("/health", this::handleHealth);
+        server.setExecutor(executor);
+    }
+
+    /**
+     * @return the port listened on, the one picked by the system when the server was created on port 0
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void start() {
+        server.start();
+        logger.info("Listening on http://localhost:{}/predict", server.getAddress().getPort());
+    }
+
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+        try {
+            if (executor.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                detectors.close();
+            } else {
+                logger.warn("Request handlers still running, face detectors left open");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handlePredict(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "{\"error\":\"POST an image\"}");
+                return;
+            }
+            byte[] body = readBody(exchange.getRequestBody());
+            if (body.length == 0) {
+                respond(exchange, 400, "{\"error\":\"Empty request body, POST an image\"}");
+                return;
+            }
+            Mat image = decode(body);
+            if (image == null) {
+                respond(exchange, 400, "{\"error\":\"Unable to decode the image\"}");
+                return;
+            }
+            try {
+                respond(exchange, 200, predict(image, isCropped(exchange)));
+            } finally {
+                image.close();
+            }
+        } catch (RejectedExecutionException e) {
+            if (exchange.getResponseCode() == -1) {
+                exchange.getResponseHeaders().add("Retry-After", "1");
+            }
+            respond(exchange, 503, "{\"error\":" + JsonUtils.string(e.getMessage()) + "}");
+        } catch (TimeoutException e) {
+            respond(exchange, 504, "{\"error\":\"Prediction timed out\"}");
+        } catch (Exception e) {
+            logger.error("Error when handling a prediction request", e);
+            respond(exchange, 500, "{\"error\":" + JsonUtils.string(String.valueOf(e.getMessage())) + "}");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private String predict(Mat image, boolean cropped) throws Exception {
+        Map<Rect, Mat> faces = cropped
+                ? Collections.singletonMap(new Rect(0, 0, image.cols(), image.rows()), image)
+                : detectors.get().detect(image);
+
+        Map<Rect, CompletableFuture<FacePrediction>> futures = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<Rect, Mat> face : faces.entrySet()) {
+                futures.put(face.getKey(), submit(face.getValue()));
+            }
+        } finally {
+            if (!cropped) {
+                for (Mat face : faces.values()) {
+                    face.close();
+                }
+            }
+        }
+
+        List<String> results = new ArrayList<>(futures.size());
+        for (Map.Entry<Rect, CompletableFuture<FacePrediction>> entry : futures.entrySet()) {
+            FacePrediction prediction;
+            try {
+                prediction = entry.getValue().get(REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RejectedExecutionException) {
+                    throw (RejectedExecutionException) e.getCause();
+                }
+                throw new CompletionException(e.getCause());
+            }
+            Rect rect = entry.getKey();
+            results.add(String.format(Locale.ROOT,
+                    "{\"x\":%d,\"y\":%d,\"width\":%d,\"height\":%d,\"age\":\"%s\",\"ageConfidence\":%.4f,"
+                            + "\"gender\":\"%s\",\"genderConfidence\":%.4f,\"ageScores\":%s,\"genderScores\":%s}",
+                    rect.x(), rect.y(), rect.width(), rect.height(),
+                    prediction.getAge(), prediction.getAgeConfidence(),
+                    prediction.getGender(), prediction.getGenderConfidence(),
+                    JsonUtils.array(prediction.getAgeScores()), JsonUtils.array(prediction.getGenderScores())));
+        }
+        return "{\"faces\":[" + String.join(",", results) + "]}";
+    }
+
+    /**
+     * Queues a copy of a face, freed once the scheduler is done with it. A request that times out or is rejected
+     * frees its image while its other faces may still be queued, they must not point into it.
+     */
+    private CompletableFuture<FacePrediction> submit(Mat face) {
+        Mat copy = face.clone();
+        CompletableFuture<FacePrediction> future;
+        try {
+            future = scheduler.submit(STREAM, copy);
+        } catch (RuntimeException e) {
+            copy.close();
+            throw e;
+        }
+        future.whenComplete((prediction, error) -> copy.close());
+        return future;
+    }
+
+    private void handleHealth(HttpExchange exchange) throws IOException {
+        try {
+            respond(exchange, 200, String.format("{\"queueDepth\":%d,\"rejected\":%d}",
+                    scheduler.getQueueDepth(), scheduler.getRejected()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return the decoded image, null when the body is not an image OpenCV can read
+     */
+    private static Mat decode(byte[] body) {
+        try (BytePointer data = new BytePointer(body); Mat encoded = new Mat(1, body.length, CV_8UC1, data)) {
+            Mat image = imdecode(encoded, IMREAD_COLOR);
+            if (image == null || image.empty()) {
+                if (image != null) {
+                    image.close();
+                }
+                return null;
+            }
+            return image;
+        } catch (RuntimeException e) {
+            // OpenCV throws on some corrupt inputs rather than returning an empty image
+            logger.debug("Unable to decode a request body of {} bytes", body.length, e);
+            return null;
+        }
+    }
+
+    static boolean isCropped(HttpExchange exchange) throws UnsupportedEncodingException {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return false;
+        }
+        for (String parameter : query.split("&")) {
+            int equals = parameter.indexOf('=');
+            String name = URLDecoder.decode(equals < 0 ? parameter : parameter.substring(0, equals),
+                    StandardCharsets.UTF_8.name());
+            if (name.equals("cropped")) {
+                return equals >= 0 && Boolean.parseBoolean(
+                        URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8.name()));
+            }
+        }
+        return false;
+    }
+
+    private static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        if (exchange.getResponseCode() != -1) {
+            // headers already sent, e.g. the client went away while the answer was written
+            logger.debug("Not answering {} to a request already answered with {}", status, exchange.getResponseCode());
+            return;
+        }
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import java.util.Locale;
+
+/**
+ * Minimal JSON writing helpers for the result files and the HTTP endpoint.
+ */
+final class JsonUtils {
+
+    private JsonUtils() {
+    }
+
+    /**
+     * @return the value as a quoted and escaped JSON string
+     */
+    static String string(String value) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * @return the values as a JSON array with 4 decimals
+     */
+    static String array(float[] values) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(String.format(Locale.ROOT, "%.4f", values[i]));
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,18 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+/**
+ * Face detection with OpenCV's frontal face LBP cascade. Local binary pattern features are integer based and
+ * several times cheaper to evaluate than Haar features on CPU, at the cost of somewhat lower recall.
+ */
+public class LbpFaceDetector extends CascadeFaceDetector {
+
+    private static final String CASCADE = "fdmodel/OpenCVLbpCascadeFaceDetector/lbpcascade_frontalface_improved.xml";
+
+    public LbpFaceDetector() {
+        this(new DetectionSettings());
+    }
+
+    public LbpFaceDetector(DetectionSettings settings) {
+        super(CASCADE, settings);
+    }
+}
@@ -0,0 +1,171 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closed-loop load generator for {@link InferenceServer}. A number of clients post the same image over and over
+ * for a fixed duration, then latency percentiles and throughput of the successful requests are reported along with
+ * the number of rejected and timed out ones.
+ * <p>
+ * With {@code local} as url the server is started in this JVM on a free port, with the {@code agegender.server.*}
+ * properties given to the load generator. A tiny {@code -Dagegender.server.timeoutMs}, e.g. 1, answers most
+ * requests with 504 while their faces are still queued, which exercises freeing requests whose faces are still
+ * being classified. The run fails with exit code 1 when the server is not healthy once the load is over.
+ * <p>
+ * Usage: {@code LoadGenerator <image> [url | local] [clients] [seconds]}
+ */
+public class LoadGenerator {
+
+    private static final Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: LoadGenerator <image> [url | local] [clients] [seconds]");
+            System.exit(1);
+        }
+        byte[] image = Files.readAllBytes(Paths.get(args[0]));
+        InferenceScheduler scheduler = null;
+        InferenceServer server = null;
+        URL url;
+        if (args.length > 1 && args[1].equals("local")) {
+            NativeMemory.configure();
+            scheduler = new InferenceScheduler(AgeGenderPredictor.restore(AgeGenderPredictor.DEFAULT_BATCH_SIZE));
+            server = new InferenceServer(scheduler, 0);
+            server.start();
+            url = new URL("http://localhost:" + server.getPort() + "/predict");
+        } else {
+            url = new URL(args.length > 1 ? args[1] : "http://localhost:" + InferenceServer.DEFAULT_PORT + "/predict");
+        }
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        long seconds = args.length > 3 ? Long.parseLong(args[3]) : 30;
+
+        logger.info("Sending {} for {}s from {} clients to {}", args[0], seconds, clients, url);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        List<Future<ClientResult>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            futures.add(executor.submit(() -> runClient(url, image, deadline)));
+        }
+
+        List<Long> latencies = new ArrayList<>();
+        long rejected = 0;
+        long timedOut = 0;
+        long failed = 0;
+        for (Future<ClientResult> future : futures) {
+            ClientResult result = future.get();
+            latencies.addAll(result.latencies);
+            rejected += result.rejected;
+            timedOut += result.timedOut;
+            failed += result.failed;
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        executor.shutdown();
+
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        logger.info("{} requests succeeded, {} rejected with 503, {} timed out with 504, {} failed", sorted.length,
+                rejected, timedOut, failed);
+        logger.info("Throughput: {} requests/sec", String.format("%.1f", sorted.length / elapsed));
+        logger.info("Latency p50: {} ms, p99: {} ms, max: {} ms",
+                String.format("%.2f", percentile(sorted, 0.50) / 1e6),
+                String.format("%.2f", percentile(sorted, 0.99) / 1e6),
+                String.format("%.2f", sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6));
+
+        if (server != null) {
+            // the faces of the requests that timed out are still classified, then freed
+            while (scheduler.getQueueDepth() > 0) {
+                Thread.sleep(100);
+            }
+            boolean healthy = isHealthy(new URL(url, "/health"));
+            server.stop();
+            scheduler.shutdown();
+            if (!healthy) {
+                logger.error("The server is not healthy once the load is over");
+                System.exit(1);
+            }
+            logger.info("The server is healthy once the load is over");
+        }
+    }
+
+    private static boolean isHealthy(URL url) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            try {
+                return connection.getResponseCode() == 200;
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static ClientResult runClient(URL url, byte[] image, long deadline) {
+        ClientResult result = new ClientResult();
+        byte[] buffer = new byte[8192];
+        while (System.nanoTime() < deadline) {
+            long start = System.nanoTime();
+            try {
+                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/octet-stream");
+                connection.setFixedLengthStreamingMode(image.length);
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(image);
+                }
+                int status = connection.getResponseCode();
+                try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                    // drain the body so the connection can be kept alive
+                    while (in != null && in.read(buffer) != -1) {
+                    }
+                }
+                if (status == 200) {
+                    result.latencies.add(System.nanoTime() - start);
+                } else if (status == 503) {
+                    result.rejected++;
+                } else if (status == 504) {
+                    result.timedOut++;
+                } else {
+                    result.failed++;
+                }
+            } catch (IOException e) {
+                result.failed++;
+            }
+        }
+        return result;
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static class ClientResult {
+        private final List<Long> latencies = new ArrayList<>();
+        private long rejected;
+        private long timedOut;
+        private long failed;
+    }
+}
@@ -0,0 +1,215 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Trades quality for speed when a crowd slows the {@link FramePipeline} below {@code agegender.shed.targetFps} (15,
+ * 0 to never shed load), and gives it back once the load drops.
+ * <p>
+ * Detection and classification run on their own threads, so a frame costs as much as the slower of the two. Both
+ * report how long each frame took; every {@code agegender.shed.intervalMs} (1 s) the moving average of the slower
+ * one is compared to the frame budget. Above it the controller takes the next degradation step, see {@link Level};
+ * when the cost the frame would have without the last one stays below {@code agegender.shed.restoreRatio} (0.6) of it
+ * for {@code agegender.shed.restoreIntervals} (3) evaluations in a row it undoes that step. The gap between the two
+ * thresholds keeps it from oscillating.
+ * <p>
+ * Steps without effect on the detector or camera in use are {@link #disable(Level) disabled} and skipped. Every change
+ * is logged and counted, the current level is published by {@link PipelineMetrics}.
+ */
+public class LoadShedder {
+
+    private static final Logger logger = LoggerFactory.getLogger(LoadShedder.class);
+
+    public static final double TARGET_FPS = Double.parseDouble(System.getProperty("agegender.shed.targetFps", "15"));
+    public static final long INTERVAL_MS = Long.getLong("agegender.shed.intervalMs", 1000);
+    public static final double RESTORE_RATIO = Double.parseDouble(System.getProperty("agegender.shed.restoreRatio", "0.6"));
+    public static final int RESTORE_INTERVALS = Integer.getInteger("agegender.shed.restoreIntervals", 3);
+    public static final double DETECT_SCALE_FACTOR = Double.parseDouble(System.getProperty("agegender.shed.detectScaleFactor", "0.6"));
+    public static final int MAX_FACES = Integer.getInteger("agegender.shed.maxFaces", 4);
+    public static final int CAPTURE_WIDTH = Integer.getInteger("agegender.shed.captureWidth", 640);
+    public static final int CAPTURE_HEIGHT = Integer.getInteger("agegender.shed.captureHeight", 360);
+
+    private static final double SMOOTHING = 0.2;
+
+    /**
+     * Degradation steps, each one on top of the previous ones.
+     */
+    public enum Level {
+        /** Nothing shed. */
+        FULL,
+        /** Detection on a frame downscaled by {@code agegender.shed.detectScaleFactor} more. */
+        LOW_DETECTION_RESOLUTION,
+        /** Detection on every other frame only. */
+        ALTERNATE_DETECTION,
+        /** Classification of the {@code agegender.shed.maxFaces} newest, then largest, faces of a frame only. */
+        LARGEST_FACES,
+        /** Capture at {@code agegender.shed.captureWidth} x {@code agegender.shed.captureHeight}. */
+        LOW_CAPTURE_RESOLUTION
+    }
+
+    private final long budgetNanos;
+
+    private double detectNanos;
+    private double classifyNanos;
+    private long lastEvaluation = System.nanoTime();
+    private int underBudget;
+    private volatile Level level = Level.FULL;
+    private final EnumSet<Level> disabled = EnumSet.noneOf(Level.class);
+    private final LongAdder changes = new LongAdder();
+
+    public LoadShedder() {
+        this(TARGET_FPS);
+    }
+
+    /**
+     * @param targetFps frame rate to hold, 0 to stay at full quality
+     */
+    public LoadShedder(double targetFps) {
+        this.budgetNanos = targetFps > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / targetFps) : Long.MAX_VALUE;
+    }
+
+    public void detected(long nanos) {
+        synchronized (this) {
+            detectNanos = detectNanos == 0 ? nanos : detectNanos + SMOOTHING * (nanos - detectNanos);
+        }
+        evaluate();
+    }
+
+    public void classified(long nanos) {
+        synchronized (this) {
+            classifyNanos = classifyNanos == 0 ? nanos : classifyNanos + SMOOTHING * (nanos - classifyNanos);
+        }
+        evaluate();
+    }
+
+    private synchronized void evaluate() {
+        long now = System.nanoTime();
+        if (budgetNanos == Long.MAX_VALUE || now - lastEvaluation < TimeUnit.MILLISECONDS.toNanos(INTERVAL_MS)) {
+            return;
+        }
+        lastEvaluation = now;
+        double frameNanos = Math.max(detectNanos, classifyNanos);
+        double cost = cost(level, frameNanos);
+        if (cost > budgetNanos) {
+            underBudget = 0;
+            Level next = step(1);
+            if (next != level) {
+                change(next, cost);
+            }
+            return;
+        }
+        // judged on the cost at the level restored to, undoing alternate detection doubles it
+        Level previous = step(-1);
+        if (previous != level && cost(previous, frameNanos) < RESTORE_RATIO * budgetNanos) {
+            if (++underBudget >= RESTORE_INTERVALS) {
+                underBudget = 0;
+                change(previous, cost);
+            }
+        } else {
+            underBudget = 0;
+        }
+    }
+
+    /**
+     * @return the cost of a frame at the given level, from the cost of a frame going through detection and
+     * classification
+     */
+    private static double cost(Level level, double frameNanos) {
+        // from alternate detection on only every other frame goes through detection and classification
+        return level.compareTo(Level.ALTERNATE_DETECTION) >= 0 ? frameNanos / 2 : frameNanos;
+    }
+
+    /**
+     * @return the closest enabled level in the given direction, the current one when there is none
+     */
+    private Level step(int direction) {
+        Level[] levels = Level.values();
+        for (int i = level.ordinal() + direction; i >= 0 && i < levels.length; i += direction) {
+            if (!disabled.contains(levels[i])) {
+                return levels[i];
+            }
+        }
+        return level;
+    }
+
+    /**
+     * Never takes the given step from now on, e.g. because it changes nothing with the detector in use or the camera
+     * refused it, and leaves it right away when it is the current one.
+     */
+    public synchronized void disable(Level step) {
+        if (step == Level.FULL) {
+            throw new IllegalArgumentException("Full quality cannot be disabled");
+        }
+        if (disabled.add(step)) {
+            logger.info("Load shedding step {} disabled", step);
+            if (level == step) {
+                change(step(-1), Math.max(detectNanos, classifyNanos));
+            }
+        }
+    }
+
+    private void change(Level next, double cost) {
+        logger.info("{} load to {}: {} ms per frame against a budget of {} ms (detect {} ms, classify {} ms)",
+                next.ordinal() > level.ordinal() ? "Shedding" : "Restoring", next,
+                millis(cost), millis(budgetNanos), millis(detectNanos), millis(classifyNanos));
+        level = next;
+        changes.increment();
+    }
+
+    private static String millis(double nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1e6);
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * @return how many times the level changed
+     */
+    public long getChanges() {
+        return changes.sum();
+    }
+
+    /**
+     * @param baseScale detection scale configured in the {@link DetectionSettings}
+     */
+    public double detectScale(double baseScale) {
+        return level.compareTo(Level.LOW_DETECTION_RESOLUTION) >= 0 ? baseScale * DETECT_SCALE_FACTOR : baseScale;
+    }
+
+    /**
+     * @return whether the frame with the given sequence number goes through detection
+     */
+    public boolean shouldDetect(long frame) {
+        return level.compareTo(Level.ALTERNATE_DETECTION) < 0 || frame % 2 == 0;
+    }
+
+    /**
+     * Keeps the faces to classify within {@code agegender.shed.maxFaces} when shedding that much: new faces, never
+     * classified yet, first, then the largest ones. The others wait for a later frame.
+     */
+    public List<FaceTracker.Track> selectFaces(List<FaceTracker.Track> tracks) {
+        if (level.compareTo(Level.LARGEST_FACES) < 0 || tracks.size() <= MAX_FACES) {
+            return tracks;
+        }
+        List<FaceTracker.Track> sorted = new ArrayList<>(tracks);
+        sorted.sort(Comparator.comparing((FaceTracker.Track track) -> track.getPrediction() != null)
+                .thenComparing(Comparator.comparingLong((FaceTracker.Track track) ->
+                        (long) track.getRect().width() * track.getRect().height()).reversed()));
+        return sorted.subList(0, MAX_FACES);
+    }
+
+    public boolean lowCaptureResolution() {
+        return level == Level.LOW_CAPTURE_RESOLUTION;
+    }
+}
@@ -0,0 +1,54 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.deeplearning4j.util.ModelSerializer;
+
+import java.io.File;
+
+/**
+ * Side of the square face crops the networks take as input.
+ * <p>
+ * Training and the iterators use {@code -Dagegender.inputSize} (224 by default). The trainers record the size in
+ * the model zip, and inference reads it back from there, so a model trained at 128 is fed 128x128 crops whatever
+ * the property says at serving time. Models trained before the size was recorded are taken as 224.
+ */
+public final class ModelInputSize {
+
+    public static final int DEFAULT = Integer.getInteger("agegender.inputSize", 224);
+
+    private static final String KEY = "inputSize";
+    private static final int LEGACY = 224;
+
+    private ModelInputSize() {
+    }
+
+    /**
+     * Records the input size in a model zip written by {@link ModelSerializer}.
+     */
+    public static void record(File modelFile, int inputSize) {
+        ModelSerializer.addObjectToFile(modelFile, KEY, inputSize);
+    }
+
+    /**
+     * @return the input size recorded in the model zips, which have to agree as they are fed the same crops
+     */
+    public static int read(File modelFile, File... otherModelFiles) {
+        int inputSize = read(modelFile);
+        for (File other : otherModelFiles) {
+            if (read(other) != inputSize) {
+                throw new IllegalStateException(modelFile + " was trained at " + inputSize + "x" + inputSize + " but "
+                        + other + " at " + read(other) + "x" + read(other) + ", retrain them at the same input size");
+            }
+        }
+        return inputSize;
+    }
+
+    /**
+     * @return the input size recorded in a model zip, 224 when none was recorded
+     */
+    public static int read(File modelFile) {
+        if (!ModelSerializer.listObjectsInFile(modelFile).contains(KEY)) {
+            return LEGACY;
+        }
+        return ModelSerializer.<Integer>getObjectFromFile(modelFile, KEY);
+    }
+}
@@ -0,0 +1,64 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.nd4j.linalg.api.buffer.DataType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Floating point precision the networks run inference in.
+ * <p>
+ * Reduced-precision models are not converted blindly at load time: {@link PrecisionGate} converts the FP32 models,
+ * checks their accuracy on the test splits and only then writes them next to the FP32 ones, e.g.
+ * {@code AgeDetection-fp16.zip}. Selecting a precision with {@code -Dagegender.precision=fp16|bf16} loads those
+ * artifacts, and falls back to FP32 when they were refused or not exported yet.
+ */
+public enum ModelPrecision {
+    FP32(DataType.FLOAT),
+    FP16(DataType.HALF),
+    BF16(DataType.BFLOAT16);
+
+    private static final Logger logger = LoggerFactory.getLogger(ModelPrecision.class);
+
+    public static final ModelPrecision DEFAULT =
+            valueOf(System.getProperty("agegender.precision", "fp32").toUpperCase(Locale.ROOT));
+
+    private final DataType dataType;
+
+    ModelPrecision(DataType dataType) {
+        this.dataType = dataType;
+    }
+
+    public DataType getDataType() {
+        return dataType;
+    }
+
+    /**
+     * @param model an FP32 model file
+     * @return the file the model converted to this precision is written to
+     */
+    public File artifact(File model) {
+        if (this == FP32) {
+            return model;
+        }
+        String name = model.getName();
+        String base = name.endsWith(".zip") ? name.substring(0, name.length() - 4) : name;
+        return new File(model.getParentFile(), base + "-" + name().toLowerCase(Locale.ROOT) + ".zip");
+    }
+
+    /**
+     * @param model an FP32 model file
+     * @return the file to load for the {@link #DEFAULT} precision, the FP32 one when no gated artifact exists
+     */
+    static File resolve(File model) {
+        File artifact = DEFAULT.artifact(model);
+        if (DEFAULT == FP32 || artifact.exists()) {
+            return artifact;
+        }
+        logger.warn("No {} artifact {} passed the accuracy gate, run PrecisionGate first. Falling back to FP32 {}",
+                DEFAULT, artifact, model);
+        return model;
+    }
+}
@@ -0,0 +1,31 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to restore the trained models from their zips, without updater state as at startup. Each measurement is a
+ * single cold-ish restore rather than an average over a hot loop. Run through {@link BenchmarkRunner}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(3)
+public class ModelRestoreBenchmark {
+
+    @Benchmark
+    public MultiLayerNetwork restoreAgeModel() throws IOException {
+        return ModelSerializer.restoreMultiLayerNetwork(AgeGenderDetection.CNNAgeModel, false);
+    }
+
+    @Benchmark
+    public MultiLayerNetwork restoreGenderModel() throws IOException {
+        return ModelSerializer.restoreMultiLayerNetwork(AgeGenderDetection.CNNGenderModel, false);
+    }
+}
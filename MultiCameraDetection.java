@@ -0,0 +1,248 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameGrabber;
+import org.bytedeco.javacv.OpenCVFrameConverter;
+import org.bytedeco.javacv.OpenCVFrameGrabber;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless age and gender detection on many cameras or video files from a single process.
+ * <p>
+ * Every stream grabs frames, detects and tracks faces on its own thread. Faces that need to be classified are sent
+ * to a single {@link InferenceScheduler} shared by all streams, which batches faces across streams while keeping
+ * each stream's share fair and its latency bounded. Frame rate, tracked faces and queue depth of every stream are
+ * logged periodically.
+ * <p>
+ * Usage: {@code MultiCameraDetection <camera index|video file> ...}
+ */
+public class MultiCameraDetection {
+
+    private static final Logger logger = LoggerFactory.getLogger(MultiCameraDetection.class);
+
+    private static final long REPORT_INTERVAL_SECONDS = 10;
+    private static final long STOP_TIMEOUT_MS = 5_000;
+    private static final long MAX_LATENCY_MS = Long.getLong("agegender.multicam.maxLatencyMs", 250);
+    private static final int STREAM_CAPACITY = Integer.getInteger("agegender.multicam.streamCapacity", 32);
+
+    private final InferenceScheduler scheduler;
+    private final List<CameraStream> streams = new ArrayList<>();
+    private final List<Thread> threads = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+    private volatile boolean running = false;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: MultiCameraDetection <camera index|video file> ...");
+            System.exit(1);
+        }
+
+        NativeMemory.configure();
+        AgeGenderPredictor predictor = AgeGenderPredictor.restore(AgeGenderPredictor.DEFAULT_BATCH_SIZE);
+        InferenceScheduler scheduler = new InferenceScheduler(predictor, InferenceScheduler.DEFAULT_WORKERS,
+                InferenceScheduler.DEFAULT_MAX_DELAY_MS, MAX_LATENCY_MS, STREAM_CAPACITY,
+                InferenceScheduler.DEFAULT_MAX_QUEUE_DEPTH);
+        MultiCameraDetection detection = new MultiCameraDetection(scheduler);
+        for (String source : args) {
+            detection.addStream(source);
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            logger.info("Stopping MultiCameraDetection");
+            detection.stop();
+            scheduler.shutdown();
+        }));
+        detection.start();
+    }
+
+    public MultiCameraDetection(InferenceScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @param source a camera index or the path of a video file
+     */
+    public void addStream(String source) {
+        FrameGrabber grabber;
+        if (source.matches("\\d+")) {
+            grabber = new OpenCVFrameGrabber(Integer.parseInt(source));
+            grabber.setImageWidth(1280);
+            grabber.setImageHeight(720);
+        } else {
+            grabber = new FFmpegFrameGrabber(source);
+        }
+        streams.add(new CameraStream("stream-" + streams.size() + "[" + source + "]", grabber));
+    }
+
+    /**
+     * Runs every stream until all of them ended or {@link #stop()} is called.
+     */
+    public void start() throws InterruptedException {
+        running = true;
+        for (CameraStream stream : streams) {
+            Thread thread = new Thread(stream, stream.name);
+            thread.start();
+            threads.add(thread);
+        }
+        reporter.scheduleAtFixedRate(this::report, REPORT_INTERVAL_SECONDS, REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        reporter.shutdown();
+        report();
+    }
+
+    /**
+     * Stops every stream and waits for its thread, so that the scheduler can be shut down afterwards without
+     * failing the predictions of a frame still being processed.
+     */
+    public void stop() {
+        running = false;
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join(STOP_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (thread.isAlive()) {
+                logger.warn("{} did not stop in time", thread.getName());
+            }
+        }
+    }
+
+    /**
+     * @return the latest predictions of every stream, keyed by stream name
+     */
+    public Map<String, Map<Rect, FacePrediction>> getLatestPredictions() {
+        Map<String, Map<Rect, FacePrediction>> predictions = new HashMap<>();
+        for (CameraStream stream : streams) {
+            predictions.put(stream.name, stream.latestPredictions);
+        }
+        return predictions;
+    }
+
+    private void report() {
+        Map<String, InferenceScheduler.StreamStats> stats = new HashMap<>();
+        for (InferenceScheduler.StreamStats streamStats : scheduler.getStreamStats()) {
+            stats.put(streamStats.getStream(), streamStats);
+        }
+        for (CameraStream stream : streams) {
+            long now = System.nanoTime();
+            long frames = stream.frames.getAndSet(0);
+            double fps = frames / ((now - stream.lastReport) / 1e9);
+            stream.lastReport = now;
+
+            InferenceScheduler.StreamStats streamStats = stats.get(stream.name);
+            logger.info("{}: {} fps, {} faces, inference queue depth {}, {} faces dropped, {} faces over latency bound",
+                    stream.name, String.format("%.1f", fps), stream.latestPredictions.size(),
+                    streamStats == null ? 0 : streamStats.getQueueDepth(),
+                    streamStats == null ? 0 : streamStats.getDropped(),
+                    streamStats == null ? 0 : streamStats.getExpired());
+        }
+        logger.info("Total inference queue depth {}", scheduler.getQueueDepth());
+    }
+
+    private class CameraStream implements Runnable {
+        private final String name;
+        private final FrameGrabber grabber;
+        private final FaceDetector detector = FaceDetector.create();
+        private final FaceTracker tracker = new FaceTracker();
+        private final OpenCVFrameConverter.ToMat converter = new OpenCVFrameConverter.ToMat();
+
+        private final AtomicLong frames = new AtomicLong();
+        private volatile long lastReport = System.nanoTime();
+        private volatile Map<Rect, FacePrediction> latestPredictions = Collections.emptyMap();
+
+        private CameraStream(String name, FrameGrabber grabber) {
+            this.name = name;
+            this.grabber = grabber;
+        }
+
+        @Override
+        public void run() {
+            try {
+                grabber.start();
+                logger.info("Started {} with image width-height : {}-{}", name, grabber.getImageWidth(), grabber.getImageHeight());
+            } catch (FrameGrabber.Exception e) {
+                logger.error("Unable to start {}", name, e);
+                detector.close();
+                return;
+            }
+
+            while (running) {
+                try {
+                    Frame frame = grabber.grab();
+                    if (frame == null) {
+                        logger.info("{} reached its end", name);
+                        break;
+                    }
+                    if (frame.image == null) {
+                        continue;
+                    }
+                    process(converter.convert(frame));
+                    frames.incrementAndGet();
+                } catch (FrameGrabber.Exception e) {
+                    logger.error("Error when grabbing a frame from {}", name, e);
+                } catch (Exception e) {
+                    logger.error("Unexpected error occurred while processing a frame of {}", name, e);
+                }
+            }
+
+            try {
+                grabber.stop();
+                grabber.release();
+            } catch (FrameGrabber.Exception e) {
+                logger.error("Error occurred when stopping {}", name, e);
+            }
+            detector.close();
+        }
+
+        private void process(Mat mat) {
+            Map<Rect, Mat> faces = detector.detect(mat);
+            List<CompletableFuture<FacePrediction>> futures = new ArrayList<>();
+            try {
+                List<FaceTracker.Track> toClassify = tracker.update(faces);
+                for (FaceTracker.Track track : toClassify) {
+                    futures.add(scheduler.submit(name, track.getFace()));
+                }
+                // the faces share the grabber's buffer, so every prediction has to be back before the next grab
+                for (int i = 0; i < futures.size(); i++) {
+                    try {
+                        tracker.record(toClassify.get(i), futures.get(i).join());
+                    } catch (CompletionException e) {
+                        // dropped or over the latency bound, the track asks again on the next frame
+                        logger.debug("No prediction for track {} of {}: {}", toClassify.get(i).getId(), name, e.getCause().getMessage());
+                    }
+                }
+                latestPredictions = tracker.predictions();
+            } finally {
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).exceptionally(e -> null).join();
+                for (Mat face : faces.values()) {
+                    face.close();
+                }
+            }
+        }
+    }
+}
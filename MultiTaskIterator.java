@@ -0,0 +1,121 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.DataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Feeds a two-headed network from two single-task datasets. The age and gender images do not overlap, so
+ * minibatches alternate between the two iterators and every minibatch carries labels for both heads, with the
+ * labels of the task its images are not labelled for masked out. A head therefore only learns from its own
+ * dataset while the shared layers learn from both.
+ */
+public class MultiTaskIterator implements MultiDataSetIterator, AutoCloseable {
+
+    private final DataSetIterator ageIterator;
+    private final DataSetIterator genderIterator;
+    private final int ageClasses;
+    private final int genderClasses;
+    private MultiDataSetPreProcessor preProcessor;
+    private boolean ageNext = true;
+
+    public MultiTaskIterator(DataSetIterator ageIterator, int ageClasses, DataSetIterator genderIterator, int genderClasses) {
+        this.ageIterator = ageIterator;
+        this.genderIterator = genderIterator;
+        this.ageClasses = ageClasses;
+        this.genderClasses = genderClasses;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return ageIterator.hasNext() || genderIterator.hasNext();
+    }
+
+    @Override
+    public MultiDataSet next() {
+        boolean age = nextTask();
+        return toMultiDataSet(age ? ageIterator.next() : genderIterator.next(), age);
+    }
+
+    /**
+     * @param num examples requested from the iterator of the task whose turn it is
+     */
+    @Override
+    public MultiDataSet next(int num) {
+        boolean age = nextTask();
+        return toMultiDataSet(age ? ageIterator.next(num) : genderIterator.next(num), age);
+    }
+
+    /**
+     * @return whether the next minibatch comes from the age dataset
+     */
+    private boolean nextTask() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        // alternate while both have data, then drain whichever is left
+        boolean age = ageNext ? ageIterator.hasNext() : !genderIterator.hasNext();
+        ageNext = !age;
+        return age;
+    }
+
+    private MultiDataSet toMultiDataSet(DataSet batch, boolean age) {
+        int examples = (int) batch.getFeatures().size(0);
+        INDArray present = Nd4j.ones(examples, 1);
+        INDArray absent = Nd4j.zeros(examples, 1);
+
+        INDArray ageLabels = age ? batch.getLabels() : Nd4j.zeros(examples, ageClasses);
+        INDArray genderLabels = age ? Nd4j.zeros(examples, genderClasses) : batch.getLabels();
+        MultiDataSet multiDataSet = new org.nd4j.linalg.dataset.MultiDataSet(
+                new INDArray[]{batch.getFeatures()},
+                new INDArray[]{ageLabels, genderLabels},
+                null,
+                new INDArray[]{age ? present : absent, age ? absent : present});
+        if (preProcessor != null) {
+            preProcessor.preProcess(multiDataSet);
+        }
+        return multiDataSet;
+    }
+
+    @Override
+    public void setPreProcessor(MultiDataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public MultiDataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return ageIterator.resetSupported() && genderIterator.resetSupported();
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        ageIterator.reset();
+        genderIterator.reset();
+        ageNext = true;
+    }
+
+    /**
+     * Stops the threads of both underlying iterators, see {@link CachedDataSetIterator#close()}.
+     */
+    @Override
+    public void close() {
+        CachedDataSetIterator.shutdown(ageIterator);
+        CachedDataSetIterator.shutdown(genderIterator);
+    }
+}
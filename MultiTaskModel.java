@@ -0,0 +1,153 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.layers.*;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.evaluation.classification.Evaluation;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.learning.config.Adam;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Trains a single network predicting both age and gender. A convolutional backbone, the same as the one of
+ * {@link AgeModel}, is shared by a 7-way age head and a 2-way gender head, so a face goes through the
+ * convolutions once instead of once per model. Minibatches of the age and gender datasets alternate, see
+ * {@link MultiTaskIterator}.
+ * <p>
+ * Training goes through {@link TrainingLoop}, with checkpoints and early stopping on the mean accuracy of both heads
+ * over test subsamples, and {@link ParallelTraining}. Learning rate, L2, width, batch size and epochs come from
+ * {@link Hyperparameters}.
+ * <p>
+ * The trained graph is written to {@code generated-models/AgeGenderDetection.zip}, which
+ * {@link AgeGenderDetection} and the other entry points pick up instead of the two single-task models when present.
+ */
+public class MultiTaskModel {
+
+    private static final Logger logger = org.slf4j.LoggerFactory.getLogger(MultiTaskModel.class);
+    private static final int height = ModelInputSize.DEFAULT;
+    private static final int width = ModelInputSize.DEFAULT;
+    private static final int channels = 3;
+    private static final int ageClasses = AgeGenderDetection.AGES.length;
+    private static final int genderClasses = 2;
+    private static int batchSize = Hyperparameters.batchSize(32);
+    private static int seed = 123;
+    private static int epochs = Hyperparameters.epochs(25);
+
+    public static void main(String[] args) throws Exception {
+
+        AgeModel.setup(batchSize);
+
+        // image augmentation of the gender images, the age ones are augmented by AgeModel.setup
+        GenderIterator.setup(batchSize, 80, Augmentation::create);
+
+        //create iterators
+        MultiTaskIterator trainIter = new MultiTaskIterator(
+                AgeModel.trainIterator(), ageClasses, GenderIterator.trainIterator(), genderClasses);
+        DataSetIterator ageTestIter = AgeModel.testIterator();
+        DataSetIterator genderTestIter = GenderIterator.testIterator();
+
+        //model configuration, the output order is the one AgeGenderPredictor expects
+        ComputationGraphConfiguration conf = new NeuralNetConfiguration.Builder()
+                .seed(seed)
+                .weightInit(WeightInit.XAVIER)
+                .updater(new Adam(Hyperparameters.LEARNING_RATE))
+                .l2(Hyperparameters.L2)
+                .graphBuilder()
+                .addInputs("input")
+                .setInputTypes(InputType.convolutional(height, width, channels))
+                .addLayer("bn", new BatchNormalization(), "input")
+                .addLayer("conv1", new ConvolutionLayer.Builder()
+                        .kernelSize(5, 5)
+                        .stride(2, 2)
+                        .nOut(Hyperparameters.width(100))
+                        .activation(Activation.RELU)
+                        .build(), "bn")
+                .addLayer("pool1", new SubsamplingLayer.Builder(SubsamplingLayer.PoolingType.MAX)
+                        .kernelSize(2, 2)
+                        .stride(1, 1)
+                        .build(), "conv1")
+                .addLayer("conv2", new ConvolutionLayer.Builder()
+                        .kernelSize(5, 5)
+                        .stride(2, 2)
+                        .nOut(Hyperparameters.width(100))
+                        .activation(Activation.RELU)
+                        .build(), "pool1")
+                .addLayer("pool2", new SubsamplingLayer.Builder(SubsamplingLayer.PoolingType.MAX)
+                        .kernelSize(2, 2)
+                        .stride(1, 1)
+                        .build(), "conv2")
+                .addLayer("ageDense", new DenseLayer.Builder()
+                        .nOut(Hyperparameters.width(100))
+                        .activation(Activation.RELU)
+                        .build(), "pool2")
+                .addLayer("age", new OutputLayer.Builder(LossFunctions.LossFunction.MCXENT)
+                        .activation(Activation.SOFTMAX)
+                        .nOut(ageClasses)
+                        .build(), "ageDense")
+                .addLayer("genderDense", new DenseLayer.Builder()
+                        .nOut(Hyperparameters.width(100))
+                        .activation(Activation.RELU)
+                        .build(), "pool2")
+                .addLayer("gender", new OutputLayer.Builder(LossFunctions.LossFunction.MCXENT)
+                        .activation(Activation.SOFTMAX)
+                        .nOut(genderClasses)
+                        .build(), "genderDense")
+                .setOutputs("age", "gender")
+                .build();
+
+        //train model and eval model
+        ComputationGraph model = new ComputationGraph(conf);
+        model.init();
+        model.setListeners(new ScoreIterationListener(50));
+        logger.info(model.summary());
+
+        File modelFilename = args.length > 0 ? new File(args[0]) : AgeGenderDetection.CNNMultiTaskModel;
+        // early stopping on test subsamples of both tasks, resumes from the last checkpoint of an interrupted run
+        ToDoubleFunction<ComputationGraph> accuracy = graph ->
+                (evaluate(graph, TrainingLoop.subsample(ageTestIter), 0, ageClasses).accuracy()
+                        + evaluate(graph, TrainingLoop.subsample(genderTestIter), 1, genderClasses).accuracy()) / 2;
+        try (TrainingLoop<ComputationGraph> loop = new TrainingLoop<>(modelFilename.getName().replace(".zip", ""),
+                model, trainIter, accuracy, epochs)) {
+            model = loop.run();
+
+            logger.info("Age head on the age test set:\n{}", evaluate(model, ageTestIter, 0, ageClasses).stats());
+            logger.info("Gender head on the gender test set:\n{}", evaluate(model, genderTestIter, 1, genderClasses).stats());
+
+            modelFilename.getAbsoluteFile().getParentFile().mkdirs();
+            ModelSerializer.writeModel(model, modelFilename, true);
+            ModelInputSize.record(modelFilename, height);
+            loop.deleteCheckpoints();
+        } finally {
+            CachedDataSetIterator.shutdown(ageTestIter);
+            CachedDataSetIterator.shutdown(genderTestIter);
+        }
+
+        logger.info("Model completed");
+    }
+
+    /**
+     * Evaluates one head on a single-task test set.
+     */
+    static Evaluation evaluate(ComputationGraph model, DataSetIterator iterator, int output, int numClasses) {
+        Evaluation evaluation = new Evaluation(numClasses);
+        iterator.reset();
+        while (iterator.hasNext()) {
+            DataSet batch = iterator.next();
+            INDArray[] outputs = model.output(batch.getFeatures());
+            evaluation.eval(batch.getLabels(), outputs[output]);
+        }
+        return evaluation;
+    }
+}
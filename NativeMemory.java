@@ -0,0 +1,47 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.bytedeco.javacpp.Pointer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caps the native memory of the process.
+ * <p>
+ * JavaCPP accounts for every native allocation made through it, OpenCV mats and ND4J buffers alike. Past
+ * {@code agegender.native.maxBytes} of them, or once the process reaches {@code agegender.native.maxPhysicalBytes}
+ * of physical memory, it runs the garbage collector to free unreachable pointers and throws an
+ * {@link OutOfMemoryError} when that is not enough. Both accept JavaCPP sizes such as {@code 2g}; unset, JavaCPP
+ * keeps its defaults of the maximum heap size and twice that.
+ * <p>
+ * JavaCPP reads its limits once, so {@link #configure()} has to run before the first native allocation.
+ */
+public final class NativeMemory {
+
+    private static final Logger logger = LoggerFactory.getLogger(NativeMemory.class);
+
+    public static final String MAX_BYTES = System.getProperty("agegender.native.maxBytes");
+    public static final String MAX_PHYSICAL_BYTES = System.getProperty("agegender.native.maxPhysicalBytes");
+
+    private NativeMemory() {
+    }
+
+    /**
+     * Hands the configured limits to JavaCPP and logs the ones in effect.
+     */
+    public static void configure() {
+        if (MAX_BYTES != null) {
+            System.setProperty("org.bytedeco.javacpp.maxBytes", MAX_BYTES);
+        }
+        if (MAX_PHYSICAL_BYTES != null) {
+            System.setProperty("org.bytedeco.javacpp.maxPhysicalBytes", MAX_PHYSICAL_BYTES);
+        }
+        long heap = Runtime.getRuntime().maxMemory();
+        if ((MAX_BYTES != null && Pointer.maxBytes() != Pointer.parseBytes(MAX_BYTES, heap))
+                || (MAX_PHYSICAL_BYTES != null && Pointer.maxPhysicalBytes() != Pointer.parseBytes(MAX_PHYSICAL_BYTES, heap))) {
+            logger.warn("Native memory limits configured after the first native allocation, set "
+                    + "-Dorg.bytedeco.javacpp.maxBytes and -Dorg.bytedeco.javacpp.maxPhysicalBytes instead");
+        }
+        logger.info("Native memory limited to {} MB through JavaCPP, {} MB physical", Pointer.maxBytes() >> 20,
+                Pointer.maxPhysicalBytes() >> 20);
+    }
+}
@@ -0,0 +1,126 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.evaluation.classification.Evaluation;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Supplier;
+
+/**
+ * Measures how data-parallel training of {@link AgeModel} or {@link GenderModel} scales with the number of
+ * {@link ParallelTraining} workers, and checks that it does not cost accuracy.
+ * <p>
+ * A fresh network is trained for one epoch per worker count and the images/sec, speedup and parallel efficiency
+ * against one worker are reported. Then a network is trained for {@code agegender.train.scalingEpochs} (5) epochs on
+ * one worker and on the largest worker count. When the test accuracy of the parallel one is more than
+ * {@code agegender.train.accuracyTolerance} (0.02, absolute) below the single-threaded one the exit code is 1.
+ * <p>
+ * Usage: {@code ParallelScalingReport <age|gender> [workers ...]}, by default 1, 2, 4, ... up to the number of cores.
+ */
+public class ParallelScalingReport {
+
+    private static final Logger logger = LoggerFactory.getLogger(ParallelScalingReport.class);
+
+    private static final int EPOCHS = Integer.getInteger("agegender.train.scalingEpochs", 5);
+    private static final double ACCURACY_TOLERANCE = Double.parseDouble(
+            System.getProperty("agegender.train.accuracyTolerance", "0.02"));
+    private static final int ageBatchSize = 32;
+    private static final int genderBatchSize = 64;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || !(args[0].equals("age") || args[0].equals("gender"))) {
+            System.err.println("Usage: ParallelScalingReport <age|gender> [workers ...]");
+            System.exit(1);
+        }
+        boolean age = args[0].equals("age");
+        List<Integer> workerCounts = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            workerCounts.add(Integer.parseInt(args[i]));
+        }
+        if (workerCounts.isEmpty()) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            for (int workers = 1; workers < cores; workers *= 2) {
+                workerCounts.add(workers);
+            }
+            workerCounts.add(cores);
+        }
+
+        Supplier<MultiLayerConfiguration> configuration;
+        if (age) {
+            AgeModel.setup(ageBatchSize);
+            configuration = AgeModel::configuration;
+        } else {
+            GenderIterator.setup(genderBatchSize, 80, Augmentation::create);
+            configuration = GenderModel::configuration;
+        }
+
+        List<String> rows = new ArrayList<>();
+        double baseline = 0;
+        for (int workers : workerCounts) {
+            MultiLayerNetwork model = new MultiLayerNetwork(configuration.get());
+            model.init();
+            DataSetIterator trainIter = trainIterator(age);
+            double imagesPerSecond;
+            try {
+                imagesPerSecond = ParallelTraining.fit(model, trainIter, 1, workers);
+            } finally {
+                // every iterator holds its own augment threads
+                CachedDataSetIterator.shutdown(trainIter);
+            }
+            if (baseline == 0) {
+                // per worker, in case the first count is not 1
+                baseline = imagesPerSecond / workers;
+            }
+            double speedup = imagesPerSecond / baseline;
+            rows.add(String.format(Locale.ROOT, "%7d  %10.1f  %7.2f  %10.0f%%", workers, imagesPerSecond,
+                    speedup, 100 * speedup / workers));
+        }
+        logger.info("workers  images/sec  speedup  efficiency");
+        for (String row : rows) {
+            logger.info(row);
+        }
+
+        int maxWorkers = workerCounts.stream().mapToInt(Integer::intValue).max().getAsInt();
+        double singleAccuracy = trainAndEvaluate(age, configuration, 1);
+        double parallelAccuracy = trainAndEvaluate(age, configuration, maxWorkers);
+        double drop = singleAccuracy - parallelAccuracy;
+        logger.info(String.format(Locale.ROOT,
+                "Test accuracy after %d epochs: %.4f on 1 worker, %.4f on %d workers, drop %.4f (tolerance %.4f)",
+                EPOCHS, singleAccuracy, parallelAccuracy, maxWorkers, drop, ACCURACY_TOLERANCE));
+        if (drop > ACCURACY_TOLERANCE) {
+            logger.error("Data-parallel training on {} workers loses too much accuracy", maxWorkers);
+            System.exit(1);
+        }
+    }
+
+    private static double trainAndEvaluate(boolean age, Supplier<MultiLayerConfiguration> configuration, int workers)
+            throws IOException {
+        MultiLayerNetwork model = new MultiLayerNetwork(configuration.get());
+        model.init();
+        DataSetIterator trainIter = trainIterator(age);
+        try {
+            ParallelTraining.fit(model, trainIter, EPOCHS, workers);
+        } finally {
+            CachedDataSetIterator.shutdown(trainIter);
+        }
+        DataSetIterator testIter = age ? AgeModel.testIterator() : GenderIterator.testIterator();
+        try {
+            Evaluation evaluation = model.evaluate(testIter);
+            return evaluation.accuracy();
+        } finally {
+            CachedDataSetIterator.shutdown(testIter);
+        }
+    }
+
+    private static DataSetIterator trainIterator(boolean age) throws IOException {
+        // a fresh iterator per run, so that every run sees the same augmentations
+        return age ? AgeModel.trainIterator() : GenderIterator.trainIterator();
+    }
+}
@@ -0,0 +1,129 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.optimize.api.TrainingListener;
+import org.deeplearning4j.parallelism.ParallelWrapper;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Trains a model either on a single replica or data-parallel on several replicas with a {@link ParallelWrapper}.
+ * <p>
+ * {@code agegender.train.workers} replicas (1, a plain {@code fit}, by default) each train on their own minibatches.
+ * In {@code averaging} mode ({@code agegender.train.mode}) their parameters and updater states are averaged every
+ * {@code agegender.train.averagingFrequency} (3) minibatches; in {@code shared} mode they exchange compressed
+ * gradient updates after every minibatch. {@code agegender.train.prefetch} (4) minibatches per replica are fetched
+ * ahead. In averaging mode every {@code fit} of the wrapper ends by averaging the replicas into the model, which is
+ * then evaluated and saved as usual. A loop over epochs keeps one wrapper, see {@link #wrap}, as building one starts
+ * and warms up all the replicas.
+ */
+public final class ParallelTraining {
+
+    private static final Logger logger = LoggerFactory.getLogger(ParallelTraining.class);
+
+    public static final int WORKERS = Integer.getInteger("agegender.train.workers", 1);
+    public static final int PREFETCH = Integer.getInteger("agegender.train.prefetch", 4);
+    public static final int AVERAGING_FREQUENCY = Integer.getInteger("agegender.train.averagingFrequency", 3);
+    public static final ParallelWrapper.TrainingMode MODE =
+            "shared".equalsIgnoreCase(System.getProperty("agegender.train.mode", "averaging"))
+                    ? ParallelWrapper.TrainingMode.SHARED_GRADIENTS : ParallelWrapper.TrainingMode.AVERAGING;
+
+    private ParallelTraining() {
+    }
+
+    /**
+     * Trains with the configured number of workers.
+     *
+     * @return training throughput in images per second
+     */
+    public static double fit(Model model, DataSetIterator trainIter, int epochs) {
+        return fit(model, trainIter, epochs, WORKERS);
+    }
+
+    /**
+     * @param model a {@link MultiLayerNetwork} or a {@link ComputationGraph}
+     * @return training throughput in images per second
+     */
+    public static double fit(Model model, DataSetIterator trainIter, int epochs, int workers) {
+        // count the images on their way into the model, whichever thread fetches them
+        LongAdder images = new LongAdder();
+        DataSetPreProcessor preProcessor = trainIter.getPreProcessor();
+        trainIter.setPreProcessor(dataSet -> {
+            if (preProcessor != null) {
+                preProcessor.preProcess(dataSet);
+            }
+            images.add(dataSet.numExamples());
+        });
+
+        long start = System.nanoTime();
+        try {
+            if (workers <= 1) {
+                for (int epoch = 0; epoch < epochs; epoch++) {
+                    fitEpoch(model, trainIter);
+                    logThroughput(epoch, images.sum(), start);
+                }
+            } else {
+                ParallelWrapper wrapper = wrap(model, workers);
+                try {
+                    for (int epoch = 0; epoch < epochs; epoch++) {
+                        trainIter.reset();
+                        wrapper.fit(trainIter);
+                        logThroughput(epoch, images.sum(), start);
+                    }
+                } finally {
+                    wrapper.close();
+                }
+            }
+        } finally {
+            trainIter.setPreProcessor(preProcessor);
+        }
+        return images.sum() / ((System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Builds a wrapper training the model on {@code workers} replicas with the configured mode. It is meant to fit
+     * every epoch of a run and must be closed once the run ends, which stops its worker threads.
+     *
+     * @param model a {@link MultiLayerNetwork} or a {@link ComputationGraph}
+     */
+    public static ParallelWrapper wrap(Model model, int workers) {
+        ParallelWrapper wrapper = new ParallelWrapper.Builder<>(model)
+                .workers(workers)
+                .prefetchBuffer(PREFETCH)
+                .averagingFrequency(AVERAGING_FREQUENCY)
+                .trainingMode(MODE)
+                .reportScoreAfterAveraging(true)
+                .build();
+        wrapper.setListeners(listeners(model));
+        logger.info("Training on {} workers, {} mode, prefetch {}, averaging every {} minibatches",
+                workers, MODE, PREFETCH, AVERAGING_FREQUENCY);
+        return wrapper;
+    }
+
+    private static void fitEpoch(Model model, DataSetIterator trainIter) {
+        trainIter.reset();
+        if (model instanceof MultiLayerNetwork) {
+            ((MultiLayerNetwork) model).fit(trainIter);
+        } else {
+            ((ComputationGraph) model).fit(trainIter);
+        }
+    }
+
+    static Collection<TrainingListener> listeners(Model model) {
+        return model instanceof MultiLayerNetwork
+                ? ((MultiLayerNetwork) model).getListeners() : ((ComputationGraph) model).getListeners();
+    }
+
+    private static void logThroughput(int epoch, long images, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        logger.info("Epoch {} done, {} images/sec so far", epoch + 1, String.format(Locale.ROOT, "%.1f", images / seconds));
+    }
+}
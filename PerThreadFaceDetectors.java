@@ -0,0 +1,42 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * One {@link FaceDetector} per thread, as detectors are not thread-safe. Every detector handed out is closed by
+ * {@link #close()}, which must only be called once the threads are done with them.
+ */
+public class PerThreadFaceDetectors implements AutoCloseable {
+
+    private final List<FaceDetector> created = new ArrayList<>();
+    private final ThreadLocal<FaceDetector> detectors;
+
+    public PerThreadFaceDetectors(Supplier<FaceDetector> factory) {
+        this.detectors = ThreadLocal.withInitial(() -> {
+            FaceDetector detector = factory.get();
+            synchronized (created) {
+                created.add(detector);
+            }
+            return detector;
+        });
+    }
+
+    /**
+     * @return the detector of the calling thread, created on its first call
+     */
+    public FaceDetector get() {
+        return detectors.get();
+    }
+
+    @Override
+    public void close() {
+        synchronized (created) {
+            for (FaceDetector detector : created) {
+                detector.close();
+            }
+            created.clear();
+        }
+    }
+}
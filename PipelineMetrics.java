@@ -0,0 +1,423 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.bytedeco.javacpp.Pointer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Latency histograms of every pipeline stage plus frame rate, faces per frame, dropped frames, native memory, the
+ * hit rate of the {@link PredictionCache} and the {@link LoadShedder} level.
+ * <p>
+ * Stages record their duration into an HdrHistogram {@link Recorder}, which costs a {@link System#nanoTime()} call
+ * and a lock-free increment, well under a microsecond against frames that take tens of milliseconds. Every
+ * {@code agegender.metrics.intervalMs} (10 s by default) the recorders are swapped out: percentiles, frame rate and
+ * faces per frame describe that last interval, counts and sums everything since startup.
+ * <p>
+ * The metrics are published over JMX under {@value #JMX_DOMAIN} by {@link #registerMBeans()}, and in the Prometheus
+ * text format by {@link #toPrometheusText()}, see {@link MetricsServer}.
+ */
+public class PipelineMetrics {
+
+    private static final Logger logger = LoggerFactory.getLogger(PipelineMetrics.class);
+
+    public static final long INTERVAL_MS = Long.getLong("agegender.metrics.intervalMs", 10_000);
+    static final String JMX_DOMAIN = "ai.certifai.agegender";
+
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final int SIGNIFICANT_DIGITS = 3;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    public enum Stage {
+        GRAB, DETECT, PREPROCESS, AGE_INFERENCE, GENDER_INFERENCE, MULTI_TASK_INFERENCE, RENDER;
+
+        String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final Map<Stage, Recorder> recorders = new EnumMap<>(Stage.class);
+    private final Map<Stage, Histogram> intervals = new EnumMap<>(Stage.class);
+    private final Map<Stage, Histogram> totals = new EnumMap<>(Stage.class);
+
+    private final LongAdder framesDisplayed = new LongAdder();
+    private final LongAdder framesDetected = new LongAdder();
+    private final LongAdder facesDetected = new LongAdder();
+    private volatile LongSupplier droppedFrames = () -> 0;
+    private volatile PredictionCache predictionCache;
+    private volatile LoadShedder loadShedder;
+
+    private long lastSnapshot = System.nanoTime();
+    private long lastFramesDisplayed;
+    private long lastFramesDetected;
+    private long lastFacesDetected;
+    private double fps;
+    private double facesPerFrame;
+
+    private final ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "metrics-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public PipelineMetrics() {
+        for (Stage stage : Stage.values()) {
+            Recorder recorder = new Recorder(HIGHEST_TRACKABLE_NANOS, SIGNIFICANT_DIGITS);
+            recorders.put(stage, recorder);
+            // an empty interval, and the only kind of histogram the recorder accepts back for recycling
+            intervals.put(stage, recorder.getIntervalHistogram());
+            totals.put(stage, new Histogram(HIGHEST_TRACKABLE_NANOS, SIGNIFICANT_DIGITS));
+        }
+        snapshots.scheduleAtFixedRate(this::snapshot, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records the time a stage took, from {@code startNanos} as given by {@link System#nanoTime()} until now.
+     */
+    public void record(Stage stage, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        recorders.get(stage).recordValue(Math.max(0, Math.min(nanos, HIGHEST_TRACKABLE_NANOS)));
+    }
+
+    public void frameDisplayed() {
+        framesDisplayed.increment();
+    }
+
+    public void frameDetected(int faces) {
+        framesDetected.increment();
+        facesDetected.add(faces);
+    }
+
+    /**
+     * @param droppedFrames total number of frames dropped so far, e.g. by the queues of a {@link FramePipeline}
+     */
+    public void setDroppedFrames(LongSupplier droppedFrames) {
+        this.droppedFrames = droppedFrames;
+    }
+
+    /**
+     * @param predictionCache cache in front of the models, null when there is none
+     */
+    public void setPredictionCache(PredictionCache predictionCache) {
+        this.predictionCache = predictionCache;
+    }
+
+    /**
+     * @param loadShedder controller whose degradation level is published
+     */
+    public void setLoadShedder(LoadShedder loadShedder) {
+        this.loadShedder = loadShedder;
+    }
+
+    public void shutdown() {
+        snapshots.shutdownNow();
+    }
+
+    synchronized void snapshot() {
+        for (Stage stage : Stage.values()) {
+            Histogram interval = recorders.get(stage).getIntervalHistogram(intervals.get(stage));
+            intervals.put(stage, interval);
+            totals.get(stage).add(interval);
+        }
+
+        long now = System.nanoTime();
+        double seconds = (now - lastSnapshot) / 1e9;
+        long displayed = framesDisplayed.sum();
+        long detected = framesDetected.sum();
+        long faces = facesDetected.sum();
+        fps = (displayed - lastFramesDisplayed) / seconds;
+        facesPerFrame = detected == lastFramesDetected ? 0 : (double) (faces - lastFacesDetected) / (detected - lastFramesDetected);
+        lastSnapshot = now;
+        lastFramesDisplayed = displayed;
+        lastFramesDetected = detected;
+        lastFacesDetected = faces;
+    }
+
+    public synchronized double getFps() {
+        return fps;
+    }
+
+    public synchronized double getFacesPerFrame() {
+        return facesPerFrame;
+    }
+
+    public long getFramesDisplayed() {
+        return framesDisplayed.sum();
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.getAsLong();
+    }
+
+    /**
+     * @return latency of a stage at a quantile over the last interval, in nanoseconds
+     */
+    public synchronized long getLatencyNanos(Stage stage, double quantile) {
+        return intervals.get(stage).getValueAtPercentile(quantile * 100);
+    }
+
+    public synchronized long getCount(Stage stage) {
+        return totals.get(stage).getTotalCount();
+    }
+
+    /**
+     * Renders every metric in the Prometheus text exposition format, version 0.0.4.
+     */
+    public synchronized String toPrometheusText() {
+        StringBuilder out = new StringBuilder(4096);
+        out.append("# HELP agegender_stage_latency_seconds Time spent in a pipeline stage, quantiles over the last ")
+                .append(INTERVAL_MS / 1000).append("s\n");
+        out.append("# TYPE agegender_stage_latency_seconds summary\n");
+        for (Stage stage : Stage.values()) {
+            Histogram interval = intervals.get(stage);
+            Histogram total = totals.get(stage);
+            for (double quantile : QUANTILES) {
+                out.append("agegender_stage_latency_seconds{stage=\"").append(stage.label())
+                        .append("\",quantile=\"").append(quantile).append("\"} ")
+                        .append(interval.getValueAtPercentile(quantile * 100) / 1e9).append('\n');
+            }
+            out.append("agegender_stage_latency_seconds_sum{stage=\"").append(stage.label()).append("\"} ")
+                    .append(total.getMean() * total.getTotalCount() / 1e9).append('\n');
+            out.append("agegender_stage_latency_seconds_count{stage=\"").append(stage.label()).append("\"} ")
+                    .append(total.getTotalCount()).append('\n');
+        }
+
+        gauge(out, "agegender_fps", "Frames displayed per second over the last interval", fps);
+        gauge(out, "agegender_faces_per_frame", "Faces detected per frame over the last interval", facesPerFrame);
+        counter(out, "agegender_frames_displayed_total", "Frames displayed", framesDisplayed.sum());
+        counter(out, "agegender_frames_detected_total", "Frames that went through face detection", framesDetected.sum());
+        counter(out, "agegender_faces_detected_total", "Faces detected", facesDetected.sum());
+        counter(out, "agegender_dropped_frames_total", "Frames dropped between pipeline stages", droppedFrames.getAsLong());
+
+        LoadShedder shedder = loadShedder;
+        if (shedder != null) {
+            gauge(out, "agegender_shed_level", "Load shedding step in effect, 0 for full quality",
+                    shedder.getLevel().ordinal());
+            counter(out, "agegender_shed_changes_total", "Load shedding steps taken or undone", shedder.getChanges());
+        }
+
+        PredictionCache cache = predictionCache;
+        if (cache != null) {
+            counter(out, "agegender_prediction_cache_hits_total", "Faces answered by the prediction cache", cache.getHits());
+            counter(out, "agegender_prediction_cache_misses_total", "Faces that went through the models", cache.getMisses());
+            counter(out, "agegender_prediction_cache_evictions_total", "Predictions dropped from the full cache",
+                    cache.getEvictions());
+            counter(out, "agegender_prediction_cache_expirations_total", "Predictions dropped for their age",
+                    cache.getExpirations());
+            gauge(out, "agegender_prediction_cache_size", "Predictions in the cache", cache.size());
+            gauge(out, "agegender_prediction_cache_hit_ratio", "Hits over lookups since startup", cache.getHitRate());
+        }
+
+        gauge(out, "agegender_javacpp_bytes", "Native memory held by JavaCPP pointers, OpenCV mats and ND4J buffers",
+                Pointer.totalBytes());
+        gauge(out, "agegender_javacpp_max_bytes", "Limit of the native memory held by JavaCPP pointers",
+                Pointer.maxBytes());
+        gauge(out, "agegender_physical_bytes", "Physical memory of the process, heap and all native memory",
+                Pointer.physicalBytes());
+        gauge(out, "agegender_physical_max_bytes", "Limit of the physical memory enforced by JavaCPP",
+                Pointer.maxPhysicalBytes());
+        gauge(out, "agegender_direct_buffer_bytes", "Memory held by JVM direct buffers", directBufferBytes());
+        return out.toString();
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, double value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static long directBufferBytes() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Registers a {@code type=Pipeline} MBean with the gauges and a {@code type=Stage} MBean per stage with its
+     * latencies, on the platform MBean server.
+     */
+    public void registerMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(new StandardMBean(new Pipeline(), PipelineMBean.class),
+                    new ObjectName(JMX_DOMAIN + ":type=Pipeline"));
+            for (Stage stage : Stage.values()) {
+                server.registerMBean(new StandardMBean(new StageLatency(stage), StageLatencyMBean.class),
+                        new ObjectName(JMX_DOMAIN + ":type=Stage,name=" + stage.label()));
+            }
+        } catch (JMException e) {
+            logger.warn("Unable to register the pipeline metrics over JMX", e);
+        }
+    }
+
+    public interface PipelineMBean {
+        double getFps();
+
+        double getFacesPerFrame();
+
+        long getFramesDisplayed();
+
+        long getDroppedFrames();
+
+        long getJavaCppBytes();
+
+        long getPhysicalBytes();
+
+        long getDirectBufferBytes();
+
+        String getShedLevel();
+
+        long getShedChanges();
+
+        double getPredictionCacheHitRate();
+
+        long getPredictionCacheHits();
+
+        long getPredictionCacheMisses();
+
+        long getPredictionCacheEvictions();
+    }
+
+    public interface StageLatencyMBean {
+        long getCount();
+
+        double getP50Millis();
+
+        double getP99Millis();
+
+        double getP999Millis();
+
+        double getMaxMillis();
+    }
+
+    private class Pipeline implements PipelineMBean {
+        @Override
+        public double getFps() {
+            return PipelineMetrics.this.getFps();
+        }
+
+        @Override
+        public double getFacesPerFrame() {
+            return PipelineMetrics.this.getFacesPerFrame();
+        }
+
+        @Override
+        public long getFramesDisplayed() {
+            return PipelineMetrics.this.getFramesDisplayed();
+        }
+
+        @Override
+        public long getDroppedFrames() {
+            return PipelineMetrics.this.getDroppedFrames();
+        }
+
+        @Override
+        public long getJavaCppBytes() {
+            return Pointer.totalBytes();
+        }
+
+        @Override
+        public long getPhysicalBytes() {
+            return Pointer.physicalBytes();
+        }
+
+        @Override
+        public long getDirectBufferBytes() {
+            return directBufferBytes();
+        }
+
+        @Override
+        public String getShedLevel() {
+            LoadShedder shedder = loadShedder;
+            return shedder == null ? LoadShedder.Level.FULL.name() : shedder.getLevel().name();
+        }
+
+        @Override
+        public long getShedChanges() {
+            LoadShedder shedder = loadShedder;
+            return shedder == null ? 0 : shedder.getChanges();
+        }
+
+        @Override
+        public double getPredictionCacheHitRate() {
+            PredictionCache cache = predictionCache;
+            return cache == null ? 0 : cache.getHitRate();
+        }
+
+        @Override
+        public long getPredictionCacheHits() {
+            PredictionCache cache = predictionCache;
+            return cache == null ? 0 : cache.getHits();
+        }
+
+        @Override
+        public long getPredictionCacheMisses() {
+            PredictionCache cache = predictionCache;
+            return cache == null ? 0 : cache.getMisses();
+        }
+
+        @Override
+        public long getPredictionCacheEvictions() {
+            PredictionCache cache = predictionCache;
+            return cache == null ? 0 : cache.getEvictions() + cache.getExpirations();
+        }
+    }
+
+    private class StageLatency implements StageLatencyMBean {
+        private final Stage stage;
+
+        private StageLatency(Stage stage) {
+            this.stage = stage;
+        }
+
+        @Override
+        public long getCount() {
+            return PipelineMetrics.this.getCount(stage);
+        }
+
+        @Override
+        public double getP50Millis() {
+            return getLatencyNanos(stage, 0.5) / 1e6;
+        }
+
+        @Override
+        public double getP99Millis() {
+            return getLatencyNanos(stage, 0.99) / 1e6;
+        }
+
+        @Override
+        public double getP999Millis() {
+            return getLatencyNanos(stage, 0.999) / 1e6;
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return getLatencyNanos(stage, 1.0) / 1e6;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.evaluation.classification.Evaluation;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+
+/**
+ * Converts the trained FP32 models to FP16 or BF16 and exports them only if they are about as accurate.
+ * <p>
+ * Both the FP32 and the converted model run over the test splits of {@link AgeModel} and {@link GenderIterator}.
+ * The argmax agreement between the two and their accuracies are reported. When the accuracy of any converted model
+ * drops by more than {@code maxAccuracyDrop} (absolute, default {@code agegender.precision.maxAccuracyDrop} = 0.01)
+ * the precision is refused: nothing is written, artifacts of that precision left by an earlier run are deleted so
+ * that {@link ModelPrecision} falls back to FP32, and the exit code is 1. Otherwise, once every comparison passed,
+ * the converted models are written next to the FP32 ones for {@link ModelPrecision} to pick up.
+ * <p>
+ * Usage: {@code PrecisionGate <fp16|bf16> [maxAccuracyDrop]}
+ */
+public class PrecisionGate {
+
+    private static final Logger logger = LoggerFactory.getLogger(PrecisionGate.class);
+
+    private static final double MAX_ACCURACY_DROP = Double.parseDouble(
+            System.getProperty("agegender.precision.maxAccuracyDrop", "0.01"));
+    private static final int batchSize = 32;
+    private static final int ageClasses = AgeGenderDetection.AGES.length;
+    private static final int genderClasses = 2;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: PrecisionGate <fp16|bf16> [maxAccuracyDrop]");
+            System.exit(1);
+        }
+        ModelPrecision precision = ModelPrecision.valueOf(args[0].toUpperCase(Locale.ROOT));
+        if (precision == ModelPrecision.FP32) {
+            throw new IllegalArgumentException("FP32 is the reference precision, choose fp16 or bf16");
+        }
+        double maxAccuracyDrop = args.length > 1 ? Double.parseDouble(args[1]) : MAX_ACCURACY_DROP;
+        DataType dataType = precision.getDataType();
+
+        if (!AgeGenderDetection.CNNMultiTaskModel.exists()
+                && !(AgeGenderDetection.CNNAgeModel.exists() && AgeGenderDetection.CNNGenderModel.exists())) {
+            throw new IllegalStateException("No trained FP32 models to convert, train them first");
+        }
+        AgeModel.setup(batchSize);
+        GenderIterator.setup(batchSize, 80);
+
+        // written only once every model passed
+        List<Export> exports = new ArrayList<>();
+        boolean passed = true;
+        if (AgeGenderDetection.CNNMultiTaskModel.exists()) {
+            int inputSize = ModelInputSize.read(AgeGenderDetection.CNNMultiTaskModel);
+            AgeModel.setInputSize(inputSize);
+            GenderIterator.setInputSize(inputSize);
+            ComputationGraph reference = ModelSerializer.restoreComputationGraph(AgeGenderDetection.CNNMultiTaskModel, false);
+            ComputationGraph converted = reference.convertDataType(dataType);
+            passed &= compare("multi-task age", features -> reference.output(features)[0],
+                    features -> converted.output(features.castTo(dataType))[0],
+                    AgeModel.testIterator(), ageClasses, maxAccuracyDrop);
+            passed &= compare("multi-task gender", features -> reference.output(features)[1],
+                    features -> converted.output(features.castTo(dataType))[1],
+                    GenderIterator.testIterator(), genderClasses, maxAccuracyDrop);
+            exports.add(new Export(converted, precision.artifact(AgeGenderDetection.CNNMultiTaskModel), inputSize));
+        }
+        if (AgeGenderDetection.CNNAgeModel.exists() && AgeGenderDetection.CNNGenderModel.exists()) {
+            int inputSize = ModelInputSize.read(AgeGenderDetection.CNNAgeModel, AgeGenderDetection.CNNGenderModel);
+            AgeModel.setInputSize(inputSize);
+            GenderIterator.setInputSize(inputSize);
+            MultiLayerNetwork ageReference = ModelSerializer.restoreMultiLayerNetwork(AgeGenderDetection.CNNAgeModel, false);
+            MultiLayerNetwork ageConverted = ageReference.convertDataType(dataType);
+            MultiLayerNetwork genderReference = ModelSerializer.restoreMultiLayerNetwork(AgeGenderDetection.CNNGenderModel, false);
+            MultiLayerNetwork genderConverted = genderReference.convertDataType(dataType);
+            passed &= compare("age", ageReference::output,
+                    features -> ageConverted.output(features.castTo(dataType)),
+                    AgeModel.testIterator(), ageClasses, maxAccuracyDrop);
+            passed &= compare("gender", genderReference::output,
+                    features -> genderConverted.output(features.castTo(dataType)),
+                    GenderIterator.testIterator(), genderClasses, maxAccuracyDrop);
+            exports.add(new Export(ageConverted, precision.artifact(AgeGenderDetection.CNNAgeModel), inputSize));
+            exports.add(new Export(genderConverted, precision.artifact(AgeGenderDetection.CNNGenderModel), inputSize));
+        }
+
+        if (!passed) {
+            logger.error("{} refused, accuracy dropped by more than {}", precision, maxAccuracyDrop);
+            // an artifact accepted earlier would keep being loaded for this precision
+            for (File model : Arrays.asList(AgeGenderDetection.CNNMultiTaskModel, AgeGenderDetection.CNNAgeModel,
+                    AgeGenderDetection.CNNGenderModel)) {
+                if (Files.deleteIfExists(precision.artifact(model).toPath())) {
+                    logger.info("Deleted {}", precision.artifact(model));
+                }
+            }
+            System.exit(1);
+        }
+        for (Export export : exports) {
+            export(export.model, export.file, export.inputSize);
+        }
+        logger.info("{} accepted", precision);
+    }
+
+    /**
+     * Runs the reference and the converted model over a test set.
+     *
+     * @return whether the accuracy of the converted model is within {@code maxAccuracyDrop} of the reference one
+     */
+    private static boolean compare(String name, Function<INDArray, INDArray> reference,
+                                   Function<INDArray, INDArray> converted, DataSetIterator iterator, int numClasses,
+                                   double maxAccuracyDrop) {
+        Evaluation referenceEvaluation = new Evaluation(numClasses);
+        Evaluation convertedEvaluation = new Evaluation(numClasses);
+        long agreeing = 0;
+        long total = 0;
+        while (iterator.hasNext()) {
+            DataSet batch = iterator.next();
+            INDArray referenceOutput = reference.apply(batch.getFeatures());
+            INDArray convertedOutput = converted.apply(batch.getFeatures()).castTo(DataType.FLOAT);
+            referenceEvaluation.eval(batch.getLabels(), referenceOutput);
+            convertedEvaluation.eval(batch.getLabels(), convertedOutput);
+
+            INDArray referenceClasses = referenceOutput.argMax(1);
+            INDArray convertedClasses = convertedOutput.argMax(1);
+            for (int i = 0; i < referenceClasses.length(); i++) {
+                if (referenceClasses.getLong(i) == convertedClasses.getLong(i)) {
+                    agreeing++;
+                }
+            }
+            total += referenceClasses.length();
+        }
+
+        double drop = referenceEvaluation.accuracy() - convertedEvaluation.accuracy();
+        boolean passed = drop <= maxAccuracyDrop;
+        logger.info(String.format(Locale.ROOT,
+                "%-18s argmax agreement %.4f over %d faces, accuracy %.4f -> %.4f (drop %.4f) %s",
+                name, total == 0 ? 0 : (double) agreeing / total, total,
+                referenceEvaluation.accuracy(), convertedEvaluation.accuracy(), drop, passed ? "ok" : "REFUSED"));
+        return passed;
+    }
+
+    private static void export(Model model, File file, int inputSize) throws IOException {
+        ModelSerializer.writeModel(model, file, false);
+        ModelInputSize.record(file, inputSize);
+        logger.info("Wrote {}", file);
+    }
+
+    /**
+     * A converted model waiting for the other comparisons.
+     */
+    private static class Export {
+        private final Model model;
+        private final File file;
+        private final int inputSize;
+
+        private Export(Model model, File file, int inputSize) {
+            this.model = model;
+            this.file = file;
+            this.inputSize = inputSize;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Size;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.bytedeco.opencv.global.opencv_core.CV_8UC1;
+import static org.bytedeco.opencv.global.opencv_core.CV_8UC3;
+import static org.bytedeco.opencv.global.opencv_imgproc.COLOR_BGR2GRAY;
+import static org.bytedeco.opencv.global.opencv_imgproc.INTER_AREA;
+import static org.bytedeco.opencv.global.opencv_imgproc.cvtColor;
+import static org.bytedeco.opencv.global.opencv_imgproc.resize;
+
+/**
+ * Recent predictions keyed by a perceptual hash of the face crop, so that faces seen over and over, posters, people
+ * at a desk, faces detected again after their track was lost, skip inference.
+ * <p>
+ * The key is a 64-bit difference hash: the crop is shrunk to 9x8, converted to grey and every bit tells whether a
+ * pixel is brighter than its right neighbour. A {@link Hasher} computes it without allocating anything per face. It
+ * is insensitive to scale, small shifts, noise and exposure, and costs a few microseconds. A lookup matches a cached
+ * hash at a Hamming distance of at most {@code agegender.predictionCache.maxDistance} (4 of 64 bits). At most
+ * {@code agegender.predictionCache.size} (1024) predictions are kept, the least recently used go first, and none is
+ * older than {@code agegender.predictionCache.ttlMs} (10 s), so that the models still see a face again from time to
+ * time.
+ * <p>
+ * Off unless {@code agegender.predictionCache} is true. Instances are thread-safe and meant to be shared by all
+ * copies of a predictor. Hits, misses and evictions are counted for {@link PipelineMetrics}.
+ */
+public class PredictionCache {
+
+    public static final boolean ENABLED = Boolean.getBoolean("agegender.predictionCache");
+    public static final int DEFAULT_SIZE = Integer.getInteger("agegender.predictionCache.size", 1024);
+    public static final long DEFAULT_TTL_MS = Long.getLong("agegender.predictionCache.ttlMs", 10_000);
+    public static final int DEFAULT_MAX_DISTANCE = Integer.getInteger("agegender.predictionCache.maxDistance", 4);
+
+    private static final int HASH_WIDTH = 9;
+    private static final int HASH_HEIGHT = 8;
+
+    private final int size;
+    private final long ttlNanos;
+    private final int maxDistance;
+    // access order, the eldest entry is the least recently used one
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    public PredictionCache() {
+        this(DEFAULT_SIZE, DEFAULT_TTL_MS, DEFAULT_MAX_DISTANCE);
+    }
+
+    /**
+     * @param size        maximum number of cached predictions
+     * @param ttlMs       age after which a prediction is no longer used
+     * @param maxDistance maximum number of differing hash bits for two crops to count as the same face
+     */
+    public PredictionCache(int size, long ttlMs, int maxDistance) {
+        this.size = size;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+        this.maxDistance = maxDistance;
+    }
+
+    /**
+     * Computes the 64-bit difference hash of a BGR face crop, see {@link Hasher} to hash many of them.
+     */
+    public static long hash(Mat face) {
+        try (Hasher hasher = new Hasher()) {
+            return hasher.hash(face);
+        }
+    }
+
+    /**
+     * @return the prediction of the closest cached crop within the Hamming distance, or null
+     */
+    public synchronized FacePrediction get(long hash) {
+        long now = System.nanoTime();
+        Entry entry = entries.get(hash);
+        if (entry == null && maxDistance > 0) {
+            // linear scan, a popcount per entry is still far cheaper than inference
+            int bestDistance = maxDistance + 1;
+            for (Entry candidate : entries.values()) {
+                int distance = Long.bitCount(candidate.hash ^ hash);
+                if (distance < bestDistance && now - candidate.created <= ttlNanos) {
+                    bestDistance = distance;
+                    entry = candidate;
+                }
+            }
+            if (entry != null) {
+                // refreshes its position in the LRU order
+                entries.get(entry.hash);
+            }
+        }
+        if (entry != null && now - entry.created > ttlNanos) {
+            entries.remove(entry.hash);
+            expirations.increment();
+            entry = null;
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.prediction;
+    }
+
+    public synchronized void put(long hash, FacePrediction prediction) {
+        entries.put(hash, new Entry(hash, prediction, System.nanoTime()));
+        if (entries.size() > size) {
+            expireOrEvict();
+        }
+    }
+
+    private void expireOrEvict() {
+        long now = System.nanoTime();
+        for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext(); ) {
+            if (now - iterator.next().created > ttlNanos) {
+                iterator.remove();
+                expirations.increment();
+            }
+        }
+        Iterator<Map.Entry<Long, Entry>> eldest = entries.entrySet().iterator();
+        while (entries.size() > size) {
+            eldest.next();
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return predictions dropped because the cache was full
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return predictions dropped because they were older than the time to live
+     */
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * Computes difference hashes in preallocated scratch images. Instances are not thread-safe, every thread needs
+     * its own.
+     */
+    public static class Hasher implements AutoCloseable {
+        private final Size size = new Size(HASH_WIDTH, HASH_HEIGHT);
+        private final Mat small = new Mat(HASH_HEIGHT, HASH_WIDTH, CV_8UC3);
+        private final BytePointer greyData = new BytePointer(HASH_WIDTH * HASH_HEIGHT);
+        private final Mat grey = new Mat(HASH_HEIGHT, HASH_WIDTH, CV_8UC1, greyData);
+        private final byte[] pixels = new byte[HASH_WIDTH * HASH_HEIGHT];
+
+        /**
+         * @return the 64-bit difference hash of a BGR face crop
+         */
+        public long hash(Mat face) {
+            // shrunk before the grey conversion, so both images keep their size and their memory from face to face
+            resize(face, small, size, 0, 0, INTER_AREA);
+            cvtColor(small, grey, COLOR_BGR2GRAY);
+            greyData.position(0).get(pixels);
+            long hash = 0;
+            for (int y = 0; y < HASH_HEIGHT; y++) {
+                for (int x = 0; x < HASH_WIDTH - 1; x++) {
+                    int i = y * HASH_WIDTH + x;
+                    hash = (hash << 1) | ((pixels[i] & 0xFF) > (pixels[i + 1] & 0xFF) ? 1 : 0);
+                }
+            }
+            return hash;
+        }
+
+        @Override
+        public void close() {
+            grey.close();
+            greyData.close();
+            small.close();
+            size.close();
+        }
+    }
+
+    private static class Entry {
+        final long hash;
+        final FacePrediction prediction;
+        final long created;
+
+        Entry(long hash, FacePrediction prediction, long created) {
+            this.hash = hash;
+            this.prediction = prediction;
+            this.created = created;
+        }
+    }
+}
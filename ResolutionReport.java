@@ -0,0 +1,110 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Scalar;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.evaluation.classification.Evaluation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static org.bytedeco.opencv.global.opencv_core.CV_8UC3;
+
+/**
+ * Compares age and gender models trained at different input sizes, on test accuracy and on inference throughput.
+ * <p>
+ * Variants are trained with e.g. {@code -Dagegender.inputSize=128 AgeModel generated-models/AgeDetection-128.zip}
+ * and the same for {@link GenderModel}. Without arguments the 224 models of {@link AgeGenderDetection} and the
+ * {@code -128} and {@code -96} variants next to them are compared, skipping the ones not trained yet. Throughput is
+ * measured on synthetic {@value #CROP_SIZE}x{@value #CROP_SIZE} crops, the typical size of a Haar detection,
+ * resized to the input size of each variant as in production.
+ * <p>
+ * Usage: {@code ResolutionReport [<age model> <gender model> ...]}
+ */
+public class ResolutionReport {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResolutionReport.class);
+
+    private static final int CROP_SIZE = 100;
+    private static final int batchSize = 32;
+    private static final long BENCHMARK_NANOS = 10_000_000_000L;
+
+    public static void main(String[] args) throws Exception {
+        List<File[]> variants = new ArrayList<>();
+        if (args.length > 0) {
+            if (args.length % 2 != 0) {
+                System.err.println("Usage: ResolutionReport [<age model> <gender model> ...]");
+                System.exit(1);
+            }
+            for (int i = 0; i < args.length; i += 2) {
+                variants.add(new File[]{new File(args[i]), new File(args[i + 1])});
+            }
+        } else {
+            variants.add(new File[]{AgeGenderDetection.CNNAgeModel, AgeGenderDetection.CNNGenderModel});
+            for (int size : new int[]{128, 96}) {
+                variants.add(new File[]{variant(AgeGenderDetection.CNNAgeModel, size),
+                        variant(AgeGenderDetection.CNNGenderModel, size)});
+            }
+        }
+
+        // split once so that every variant is evaluated on the same test images
+        AgeModel.setup(batchSize);
+        GenderIterator.setup(batchSize, 80);
+
+        List<String> rows = new ArrayList<>();
+        for (File[] variant : variants) {
+            if (!variant[0].exists() || !variant[1].exists()) {
+                logger.info("Skipping {} and {}, not trained yet", variant[0], variant[1]);
+                continue;
+            }
+            rows.add(report(variant[0], variant[1]));
+        }
+
+        logger.info("input  age accuracy  gender accuracy  faces/sec  ms/face");
+        for (String row : rows) {
+            logger.info(row);
+        }
+    }
+
+    private static File variant(File model, int size) {
+        String name = model.getName().replace(".zip", "-" + size + ".zip");
+        return new File(model.getParentFile(), name);
+    }
+
+    private static String report(File ageFile, File genderFile) throws Exception {
+        int inputSize = ModelInputSize.read(ageFile, genderFile);
+        logger.info("Evaluating {} and {} at {}x{}", ageFile, genderFile, inputSize, inputSize);
+        MultiLayerNetwork ageModel = ModelSerializer.restoreMultiLayerNetwork(ageFile, false);
+        MultiLayerNetwork genderModel = ModelSerializer.restoreMultiLayerNetwork(genderFile, false);
+
+        AgeModel.setInputSize(inputSize);
+        Evaluation ageEvaluation = ageModel.evaluate(AgeModel.testIterator());
+        GenderIterator.setInputSize(inputSize);
+        Evaluation genderEvaluation = genderModel.evaluate(GenderIterator.testIterator());
+
+        AgeGenderPredictor predictor = new AgeGenderPredictor(ageModel, genderModel,
+                AgeGenderPredictor.DEFAULT_BATCH_SIZE, inputSize);
+        predictor.warmUp();
+        Mat crop = new Mat(CROP_SIZE, CROP_SIZE, CV_8UC3, new Scalar(128, 128, 128, 0));
+        List<Mat> faces = Collections.nCopies(predictor.getBatchSize(), crop);
+        long faceCount = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            predictor.predict(faces);
+            faceCount += faces.size();
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < BENCHMARK_NANOS);
+        crop.release();
+
+        double facesPerSecond = faceCount / (elapsed / 1e9);
+        return String.format(Locale.ROOT, "%5d  %12.4f  %15.4f  %9.1f  %7.3f", inputSize,
+                ageEvaluation.accuracy(), genderEvaluation.accuracy(), facesPerSecond, 1000 / facesPerSecond);
+    }
+}
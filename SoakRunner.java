@@ -0,0 +1,210 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameGrabber;
+import org.bytedeco.javacv.OpenCVFrameConverter;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Size;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import static org.bytedeco.opencv.global.opencv_imgproc.INTER_AREA;
+import static org.bytedeco.opencv.global.opencv_imgproc.resize;
+
+/**
+ * Replays stored frames through the {@link FramePipeline} for hours and checks that its native memory stays flat.
+ * <p>
+ * The frames are composed by {@link BenchmarkData} with a crowd that changes from frame to frame, from no face to
+ * {@value #MAX_CROWD}, and fed at {@code agegender.soak.fps} (30) like a camera would. Detection, tracking,
+ * classification and annotation run as in {@link AgeGenderDetection}, without a window.
+ * <p>
+ * Every {@code agegender.soak.sampleSeconds} (60) the garbage collector is run, so that only memory still in use is
+ * counted, and the native bytes held through JavaCPP and the physical memory of the process are appended to
+ * {@code agegender.soak.output} (soak.csv). Samples of the first {@code agegender.soak.warmupMinutes} (10) are
+ * ignored, while workspaces and caches grow to their working size. The run fails with exit code 1 when the average
+ * of the last quarter of the remaining samples is more than {@code agegender.soak.maxGrowthMb} (64) above the one of
+ * the first quarter, for either measure, or when no frame went through the pipeline.
+ * <p>
+ * Run it with the {@code agegender.native.*} limits of production, see {@link NativeMemory}.
+ * <p>
+ * Usage: {@code SoakRunner [hours]}, 4 by default
+ */
+public class SoakRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(SoakRunner.class);
+
+    private static final double FPS = Double.parseDouble(System.getProperty("agegender.soak.fps", "30"));
+    private static final long SAMPLE_SECONDS = Long.getLong("agegender.soak.sampleSeconds", 60);
+    private static final long WARMUP_MINUTES = Long.getLong("agegender.soak.warmupMinutes", 10);
+    private static final long MAX_GROWTH_MB = Long.getLong("agegender.soak.maxGrowthMb", 64);
+    private static final File OUTPUT = new File(System.getProperty("agegender.soak.output", "soak.csv"));
+    private static final int MAX_CROWD = 12;
+    private static final int[] CROWDS = {0, 1, 3, 6, MAX_CROWD, 6, 3, 1};
+
+    public static void main(String[] args) throws Exception {
+        NativeMemory.configure();
+        double hours = args.length > 0 ? Double.parseDouble(args[0]) : 4;
+        long end = System.nanoTime() + (long) (hours * TimeUnit.HOURS.toNanos(1));
+
+        List<Mat> faces = BenchmarkData.faces();
+        List<Mat> frames = new ArrayList<>();
+        for (Mat background : BenchmarkData.frames()) {
+            for (int crowd : CROWDS) {
+                frames.add(BenchmarkData.compose(background, faces, crowd));
+            }
+        }
+
+        PipelineMetrics metrics = new PipelineMetrics();
+        AgeGenderPredictor predictor = AgeGenderPredictor.restore(AgeGenderPredictor.DEFAULT_BATCH_SIZE);
+        // warmed up by the pipeline, on the thread that runs the predictions
+        predictor.setMetrics(metrics);
+        FaceDetector detector = FaceDetector.create();
+        ReplayGrabber grabber = new ReplayGrabber(frames, FPS);
+        grabber.start();
+        FramePipeline pipeline = new FramePipeline(grabber, detector, predictor, AgeGenderDetection::annotate);
+        pipeline.setMetrics(metrics);
+        logger.info("Replaying {} frames at {} fps for {} hours", frames.size(), FPS, hours);
+        pipeline.start();
+
+        List<long[]> samples = new ArrayList<>();
+        long start = System.nanoTime();
+        Runtime runtime = Runtime.getRuntime();
+        try (PrintWriter out = new PrintWriter(OUTPUT, StandardCharsets.UTF_8.name())) {
+            out.println("seconds,javacpp bytes,physical bytes,heap bytes,frames displayed");
+            while (System.nanoTime() < end) {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(SAMPLE_SECONDS));
+                System.gc();
+                // pointers found unreachable are freed by JavaCPP's deallocator thread
+                Thread.sleep(100);
+                long seconds = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+                long[] sample = {seconds, Pointer.totalBytes(), Pointer.physicalBytes()};
+                out.printf(Locale.ROOT, "%d,%d,%d,%d,%d%n", sample[0], sample[1], sample[2],
+                        runtime.totalMemory() - runtime.freeMemory(), metrics.getFramesDisplayed());
+                out.flush();
+                logger.info("{} s: {} MB through JavaCPP, {} MB physical, {} frames displayed", seconds,
+                        sample[1] >> 20, sample[2] >> 20, metrics.getFramesDisplayed());
+                if (seconds >= TimeUnit.MINUTES.toSeconds(WARMUP_MINUTES)) {
+                    samples.add(sample);
+                }
+            }
+        } finally {
+            pipeline.stop();
+            detector.close();
+            grabber.stop();
+            grabber.release();
+            metrics.shutdown();
+        }
+        logger.info("Samples written to {}", OUTPUT.getAbsolutePath());
+
+        boolean flat = check(samples);
+        if (metrics.getFramesDisplayed() == 0 || metrics.getCount(PipelineMetrics.Stage.DETECT) == 0) {
+            logger.error("No frame went through the pipeline");
+            flat = false;
+        }
+        System.exit(flat ? 0 : 1);
+    }
+
+    private static boolean check(List<long[]> samples) {
+        if (samples.size() < 4) {
+            logger.error("Only {} samples after the warm-up, run for longer", samples.size());
+            return false;
+        }
+        int quarter = samples.size() / 4;
+        boolean flat = true;
+        String[] names = {"JavaCPP bytes", "physical bytes"};
+        for (int column = 1; column <= 2; column++) {
+            double first = average(samples.subList(0, quarter), column);
+            double last = average(samples.subList(samples.size() - quarter, samples.size()), column);
+            double growthMb = (last - first) / (1 << 20);
+            boolean ok = growthMb <= MAX_GROWTH_MB;
+            String message = String.format(Locale.ROOT, "%s went from %.1f MB to %.1f MB, %.1f MB against at most %d MB",
+                    names[column - 1], first / (1 << 20), last / (1 << 20), growthMb, MAX_GROWTH_MB);
+            if (ok) {
+                logger.info(message);
+            } else {
+                logger.error(message);
+            }
+            flat &= ok;
+        }
+        return flat;
+    }
+
+    private static double average(List<long[]> samples, int column) {
+        double sum = 0;
+        for (long[] sample : samples) {
+            sum += sample[column];
+        }
+        return sum / samples.size();
+    }
+
+    /**
+     * Grabs the frames of a list over and over at a fixed rate, resized when the pipeline asks for another
+     * resolution.
+     */
+    private static class ReplayGrabber extends FrameGrabber {
+        private final List<Mat> frames;
+        private final long intervalNanos;
+        private final OpenCVFrameConverter.ToMat converter = new OpenCVFrameConverter.ToMat();
+        private final Mat resized = new Mat();
+        private long next;
+        private int index;
+
+        ReplayGrabber(List<Mat> frames, double fps) {
+            this.frames = frames;
+            this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / fps);
+            this.imageWidth = frames.get(0).cols();
+            this.imageHeight = frames.get(0).rows();
+        }
+
+        @Override
+        public void start() {
+            next = System.nanoTime();
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void trigger() {
+        }
+
+        @Override
+        public Frame grab() {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            // like a camera, a late grab does not make the next ones come faster
+            next = Math.max(next + intervalNanos, System.nanoTime());
+            Mat frame = frames.get(index);
+            index = (index + 1) % frames.size();
+            if (frame.cols() != imageWidth || frame.rows() != imageHeight) {
+                try (Size size = new Size(imageWidth, imageHeight)) {
+                    resize(frame, resized, size, 0, 0, INTER_AREA);
+                }
+                frame = resized;
+            }
+            return converter.convert(frame);
+        }
+
+        @Override
+        public void release() {
+            resized.close();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.bytedeco.javacv.OpenCVFrameConverter;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.swing.*;
+import java.awt.image.BufferedImage;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every stage of the per-frame path in isolation, on a stored frame holding one face and on one stored face crop.
+ * {@code resizeForDisplay} is the former Thumbnailator display path, kept to compare against {@code showFrame}.
+ * Run through {@link BenchmarkRunner}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StageBenchmark {
+
+    private Mat frame;
+    private Mat face;
+    private Mat scratch;
+    private FaceDetector detector;
+    private FacePreprocessor preprocessor;
+    private INDArray input;
+    private MultiLayerNetwork ageModel;
+    private MultiLayerNetwork genderModel;
+    private AgeGenderPredictor predictor;
+    private Map<Rect, FacePrediction> predictions;
+    private OpenCVFrameConverter.ToMat converter;
+    private JPanel panel;
+    private VideoPanel videoPanel;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<Mat> crops = BenchmarkData.faces();
+        frame = BenchmarkData.compose(BenchmarkData.frames().get(0), crops, 1);
+        face = crops.get(0);
+        scratch = new Mat();
+
+        // every call has to do the same work, so no searching around the faces of the previous call
+        detector = FaceDetector.create(FaceDetector.DEFAULT_BACKEND, new DetectionSettings().setRoiTracking(false));
+
+        ageModel = AgeGenderDetection.restoreModel(AgeGenderDetection.CNNAgeModel);
+        genderModel = AgeGenderDetection.restoreModel(AgeGenderDetection.CNNGenderModel);
+        int inputSize = ModelInputSize.read(AgeGenderDetection.CNNAgeModel, AgeGenderDetection.CNNGenderModel);
+        preprocessor = new FacePreprocessor(1, inputSize, inputSize);
+        preprocessor.put(0, face);
+        input = preprocessor.batch(1);
+        predictor = new AgeGenderPredictor(ageModel, genderModel, AgeGenderPredictor.DEFAULT_BATCH_SIZE, inputSize);
+        Map<Rect, Mat> faces = detector.detect(frame);
+        predictions = predictor.predict(faces);
+        BenchmarkData.close(faces);
+
+        converter = new OpenCVFrameConverter.ToMat();
+        panel = new JPanel();
+        panel.setSize(1280, 720);
+        // a window slightly smaller than the frame, so the frame is resized as it usually is
+        videoPanel = new VideoPanel();
+        videoPanel.setSize(1264, 681);
+    }
+
+    @Benchmark
+    public void detect(Blackhole blackhole) {
+        Map<Rect, Mat> faces = detector.detect(frame);
+        blackhole.consume(faces);
+        BenchmarkData.close(faces);
+    }
+
+    @Benchmark
+    public INDArray preprocess() {
+        preprocessor.put(0, face);
+        return preprocessor.batch(1);
+    }
+
+    @Benchmark
+    public INDArray ageInference() {
+        return ageModel.output(input);
+    }
+
+    @Benchmark
+    public INDArray genderInference() {
+        return genderModel.output(input);
+    }
+
+    @Benchmark
+    public List<FacePrediction> predict() {
+        return predictor.predict(Collections.singletonList(face));
+    }
+
+    @Benchmark
+    public Mat annotate() {
+        frame.copyTo(scratch);
+        AgeGenderDetection.annotate(scratch, predictions);
+        return scratch;
+    }
+
+    @Benchmark
+    public BufferedImage resizeForDisplay() {
+        return ImageUtils.getResizedBufferedImage(converter.convert(frame), panel);
+    }
+
+    @Benchmark
+    public VideoPanel showFrame() {
+        videoPanel.showFrame(frame);
+        return videoPanel;
+    }
+}
@@ -0,0 +1,62 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Times the phases of startup, possibly running concurrently, up to the first prediction.
+ */
+public class StartupTimer {
+
+    private static final Logger logger = LoggerFactory.getLogger(StartupTimer.class);
+
+    private final long start = System.nanoTime();
+    private final List<String> phases = new ArrayList<>();
+    private volatile boolean firstPredictionLogged = false;
+
+    public void time(String phase, Runnable task) {
+        time(phase, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    public <T> T time(String phase, Supplier<T> task) {
+        long phaseStart = System.nanoTime();
+        try {
+            return task.get();
+        } finally {
+            long end = System.nanoTime();
+            String line = String.format("%-28s started at %6d ms, took %6d ms",
+                    phase, toMillis(phaseStart - start), toMillis(end - phaseStart));
+            synchronized (phases) {
+                phases.add(line);
+            }
+            logger.debug("Startup phase {}", line);
+        }
+    }
+
+    /**
+     * Logs the time to first prediction along with every phase timed so far, only the first call has an effect.
+     */
+    public void firstPrediction() {
+        if (firstPredictionLogged) {
+            return;
+        }
+        firstPredictionLogged = true;
+        logger.info("Time to first prediction: {} ms", toMillis(System.nanoTime() - start));
+        synchronized (phases) {
+            for (String phase : phases) {
+                logger.info("  {}", phase);
+            }
+        }
+    }
+
+    private static long toMillis(long nanos) {
+        return nanos / 1_000_000;
+    }
+}
@@ -0,0 +1,262 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.stream.Collectors;
+
+/**
+ * Trains {@link AgeModel} or {@link GenderModel} for every configuration of a search space, several at once, and
+ * writes a leaderboard.
+ * <p>
+ * The search space is a properties file with a comma-separated list of values per hyperparameter, e.g.
+ * {@code learningRate = 0.001, 0.0003}. Keys without a dot are {@link Hyperparameters} and the other
+ * {@code agegender.train.*} properties, keys with a dot are passed as they are, e.g. {@code agegender.inputSize}.
+ * {@code grid} trains every combination, {@code random <n>} a random sample of {@code n} of them.
+ * <p>
+ * Every configuration is trained by its own JVM pinned with {@code taskset} to {@code agegender.sweep.coresPerRun}
+ * (4) cores, as many at once as the machine has groups of cores. The parent builds the {@link DatasetCache} of every
+ * input size first, so all runs map the same decoded images and share one copy of them in the page cache.
+ * <p>
+ * Once every run has finished the models are evaluated on the full test split and their latency on a single face is
+ * measured. The leaderboard, sorted by accuracy, is written to {@code leaderboard.tsv} in {@code agegender.sweep.dir}
+ * (sweep/ in the working directory) next to the models and the log of every run.
+ * <p>
+ * Usage: {@code SweepRunner <age|gender> <search space> [grid | random <n>]}
+ */
+public class SweepRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(SweepRunner.class);
+
+    private static final int CORES_PER_RUN = Integer.getInteger("agegender.sweep.coresPerRun", 4);
+    private static final File SWEEP_DIR = new File(System.getProperty("agegender.sweep.dir",
+            new File(System.getProperty("user.dir"), "sweep").getPath()));
+    private static final File TASKSET = new File("/usr/bin/taskset");
+    private static final int LATENCY_RUNS = 100;
+    private static final int batchSize = 32;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || !(args[0].equals("age") || args[0].equals("gender"))
+                || (args.length > 2 && !(args[2].equals("grid") || (args[2].equals("random") && args.length > 3)))) {
+            System.err.println("Usage: SweepRunner <age|gender> <search space> [grid | random <n>]");
+            System.exit(1);
+        }
+        boolean age = args[0].equals("age");
+        Map<String, List<String>> space = readSpace(new File(args[1]));
+        List<Map<String, String>> configurations = grid(space);
+        if (args.length > 3) {
+            Collections.shuffle(configurations, new Random(123));
+            configurations = configurations.subList(0, Math.min(Integer.parseInt(args[3]), configurations.size()));
+        }
+        logger.info("Sweeping {} configurations of {}", configurations.size(), space.keySet());
+
+        // decode the dataset once, every run maps the same cache files
+        TreeSet<Integer> inputSizes = new TreeSet<>();
+        for (Map<String, String> configuration : configurations) {
+            inputSizes.add(Integer.parseInt(configuration.getOrDefault("agegender.inputSize",
+                    String.valueOf(ModelInputSize.DEFAULT))));
+        }
+        if (age) {
+            AgeModel.setup(batchSize);
+        } else {
+            GenderIterator.setup(batchSize, 80);
+        }
+        for (int inputSize : inputSizes) {
+            CachedDataSetIterator.shutdown(testIterator(age, inputSize));
+        }
+
+        Files.createDirectories(SWEEP_DIR.toPath());
+        int cores = Runtime.getRuntime().availableProcessors();
+        int slots = Math.max(1, cores / CORES_PER_RUN);
+        if (!TASKSET.canExecute()) {
+            logger.warn("{} not found, runs will not be pinned to cores", TASKSET);
+        }
+        BlockingQueue<Integer> freeSlots = new LinkedBlockingQueue<>();
+        for (int slot = 0; slot < slots; slot++) {
+            freeSlots.add(slot);
+        }
+        ExecutorService runners = Executors.newFixedThreadPool(slots);
+        List<Future<Run>> futures = new ArrayList<>();
+        for (int i = 0; i < configurations.size(); i++) {
+            Run run = new Run(i, configurations.get(i));
+            futures.add(runners.submit(() -> {
+                int slot = freeSlots.take();
+                try {
+                    train(run, age, slot);
+                } finally {
+                    freeSlots.add(slot);
+                }
+                return run;
+            }));
+        }
+        List<Run> runs = new ArrayList<>();
+        for (Future<Run> future : futures) {
+            runs.add(future.get());
+        }
+        runners.shutdown();
+
+        for (Run run : runs) {
+            if (run.exitCode == 0) {
+                evaluate(run, age);
+            }
+        }
+        writeLeaderboard(runs, new File(SWEEP_DIR, "leaderboard.tsv"));
+    }
+
+    private static Map<String, List<String>> readSpace(File file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = new FileReader(file)) {
+            properties.load(reader);
+        }
+        Map<String, List<String>> space = new LinkedHashMap<>();
+        for (String key : new TreeSet<>(properties.stringPropertyNames())) {
+            String property = key.contains(".") ? key : "agegender.train." + key;
+            space.put(property, Arrays.stream(properties.getProperty(key).split(","))
+                    .map(String::trim).filter(value -> !value.isEmpty()).collect(Collectors.toList()));
+        }
+        return space;
+    }
+
+    private static List<Map<String, String>> grid(Map<String, List<String>> space) {
+        List<Map<String, String>> configurations = new ArrayList<>();
+        configurations.add(new LinkedHashMap<>());
+        for (Map.Entry<String, List<String>> parameter : space.entrySet()) {
+            List<Map<String, String>> expanded = new ArrayList<>();
+            for (Map<String, String> configuration : configurations) {
+                for (String value : parameter.getValue()) {
+                    Map<String, String> copy = new LinkedHashMap<>(configuration);
+                    copy.put(parameter.getKey(), value);
+                    expanded.add(copy);
+                }
+            }
+            configurations = expanded;
+        }
+        return configurations;
+    }
+
+    private static void train(Run run, boolean age, int slot) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        if (TASKSET.canExecute()) {
+            int first = slot * CORES_PER_RUN;
+            command.addAll(Arrays.asList(TASKSET.getPath(), "-c", first + "-" + (first + CORES_PER_RUN - 1)));
+        }
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        for (Map.Entry<String, String> parameter : run.configuration.entrySet()) {
+            command.add("-D" + parameter.getKey() + "=" + parameter.getValue());
+        }
+        // size the thread pools to the pinned cores rather than to the machine
+        command.add("-Dagegender.augment.workers=" + CORES_PER_RUN);
+        command.add("-Dagegender.datasetCache.dir=" + DatasetCache.DIR.getAbsolutePath());
+        // the training UI binds a fixed port, concurrent runs would fight over it
+        command.add("-Dagegender.train.ui=false");
+        command.add("-Dagegender.train.checkpointDir=" + new File(SWEEP_DIR, "checkpoints").getAbsolutePath());
+        command.add((age ? AgeModel.class : GenderModel.class).getName());
+        command.add(run.model.getAbsolutePath());
+
+        ProcessBuilder builder = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(new File(SWEEP_DIR, "run-" + run.index + ".log"));
+        builder.environment().put("OMP_NUM_THREADS", String.valueOf(CORES_PER_RUN));
+        logger.info("Run {} on slot {}: {}", run.index, slot, run.configuration);
+        long start = System.nanoTime();
+        run.exitCode = builder.start().waitFor();
+        run.seconds = (System.nanoTime() - start) / 1e9;
+        logger.info("Run {} finished in {} s with exit code {}", run.index, Math.round(run.seconds), run.exitCode);
+    }
+
+    private static void evaluate(Run run, boolean age) throws IOException {
+        int inputSize = ModelInputSize.read(run.model);
+        MultiLayerNetwork model = ModelSerializer.restoreMultiLayerNetwork(run.model, false);
+        DataSetIterator testIter = testIterator(age, inputSize);
+        try {
+            run.accuracy = model.evaluate(testIter).accuracy();
+        } finally {
+            CachedDataSetIterator.shutdown(testIter);
+        }
+
+        INDArray face = Nd4j.rand(1, 3, inputSize, inputSize);
+        for (int i = 0; i < 10; i++) {
+            model.output(face);
+        }
+        long[] nanos = new long[LATENCY_RUNS];
+        for (int i = 0; i < LATENCY_RUNS; i++) {
+            long start = System.nanoTime();
+            model.output(face);
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        run.latencyMillis = nanos[LATENCY_RUNS / 2] / 1e6;
+    }
+
+    private static DataSetIterator testIterator(boolean age, int inputSize) throws IOException {
+        if (age) {
+            AgeModel.setInputSize(inputSize);
+            return AgeModel.testIterator();
+        }
+        GenderIterator.setInputSize(inputSize);
+        return GenderIterator.testIterator();
+    }
+
+    private static void writeLeaderboard(List<Run> runs, File file) throws IOException {
+        List<Run> sorted = new ArrayList<>(runs);
+        // failed runs last
+        sorted.sort(Comparator.comparingDouble((Run run) -> Double.isNaN(run.accuracy) ? -1 : run.accuracy).reversed());
+        try (PrintWriter out = new PrintWriter(file, StandardCharsets.UTF_8.name())) {
+            out.println("rank\taccuracy\twall-clock s\tms/face\texit code\tmodel\tconfiguration");
+            int rank = 1;
+            for (Run run : sorted) {
+                String line = String.format(Locale.ROOT, "%d\t%.4f\t%.0f\t%.3f\t%d\t%s\t%s", rank++, run.accuracy,
+                        run.seconds, run.latencyMillis, run.exitCode, run.model.getName(), run.configuration);
+                out.println(line);
+                logger.info(line);
+            }
+        }
+        logger.info("Leaderboard written to {}", file);
+    }
+
+    private static class Run {
+        final int index;
+        final Map<String, String> configuration;
+        final File model;
+        int exitCode = -1;
+        double seconds;
+        double accuracy = Double.NaN;
+        double latencyMillis = Double.NaN;
+
+        Run(int index, Map<String, String> configuration) {
+            this.index = index;
+            this.configuration = configuration;
+            this.model = new File(SWEEP_DIR, "model-" + index + ".zip");
+        }
+    }
+}
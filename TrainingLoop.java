@@ -0,0 +1,263 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.deeplearning4j.datasets.iterator.EarlyTerminationDataSetIterator;
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.parallelism.ParallelWrapper;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.evaluation.classification.Evaluation;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Trains a {@link MultiLayerNetwork} or a {@link ComputationGraph} with early stopping and checkpoints it can resume
+ * from.
+ * <p>
+ * After every epoch the network is evaluated on a fixed subsample of the test split, the first
+ * {@code agegender.train.evalSamples} (2048) images, rather than on the whole train and test splits, or by the
+ * evaluator given for networks with several outputs. Training stops
+ * once the accuracy has not improved for {@code agegender.train.patience} (3) epochs, and the best network is
+ * returned.
+ * <p>
+ * Checkpoints, the network with its updater state plus the epoch and minibatch reached, are written to
+ * {@code agegender.train.checkpointDir} (checkpoints/ in the working directory) after every epoch and every
+ * {@code agegender.train.checkpointEvery} (500) minibatches, 0 for epoch ends only. Data-parallel training, see
+ * {@link ParallelTraining}, keeps one wrapper for the whole run and only checkpoints at epoch ends. When a checkpoint exists training resumes from it, with
+ * a {@link CachedDataSetIterator} on the exact minibatch. Once the trained model is written the checkpoints are
+ * deleted with {@link #deleteCheckpoints()}. Closing the loop closes its iterators.
+ */
+public class TrainingLoop<M extends Model> implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TrainingLoop.class);
+
+    public static final int EVAL_SAMPLES = Integer.getInteger("agegender.train.evalSamples", 2048);
+    public static final int PATIENCE = Integer.getInteger("agegender.train.patience", 3);
+    public static final int CHECKPOINT_EVERY = Integer.getInteger("agegender.train.checkpointEvery", 500);
+    /** Whether the trainers start the DL4J training UI, which binds one port per machine. */
+    public static final boolean UI = Boolean.parseBoolean(System.getProperty("agegender.train.ui", "true"));
+    public static final File CHECKPOINT_DIR = new File(System.getProperty("agegender.train.checkpointDir",
+            new File(System.getProperty("user.dir"), "checkpoints").getPath()));
+
+    private static final String STATE_KEY = "trainingState";
+
+    private final M initial;
+    // one of the two is set
+    private final DataSetIterator trainIter;
+    private final MultiDataSetIterator multiTrainIter;
+    private final DataSetIterator testIter;
+    private final ToDoubleFunction<M> evaluator;
+    private final int maxEpochs;
+    private final File checkpointFile;
+    private final File bestFile;
+
+    /**
+     * @param name      name of the checkpoint files, e.g. the model trained
+     * @param model     freshly initialised network, replaced by the checkpointed one when resuming
+     * @param maxEpochs epochs to train for when the accuracy keeps improving
+     */
+    public TrainingLoop(String name, M model, DataSetIterator trainIter, DataSetIterator testIter, int maxEpochs) {
+        this(name, model, trainIter, null, testIter, null, maxEpochs);
+    }
+
+    /**
+     * @param name      name of the checkpoint files, e.g. the model trained
+     * @param model     freshly initialised graph, replaced by the checkpointed one when resuming
+     * @param evaluator accuracy of the graph after an epoch, the higher the better, e.g. over every output
+     * @param maxEpochs epochs to train for when the accuracy keeps improving
+     */
+    public TrainingLoop(String name, M model, MultiDataSetIterator trainIter, ToDoubleFunction<M> evaluator,
+                        int maxEpochs) {
+        this(name, model, null, trainIter, null, evaluator, maxEpochs);
+    }
+
+    private TrainingLoop(String name, M model, DataSetIterator trainIter, MultiDataSetIterator multiTrainIter,
+                         DataSetIterator testIter, ToDoubleFunction<M> evaluator, int maxEpochs) {
+        this.initial = model;
+        this.trainIter = trainIter;
+        this.multiTrainIter = multiTrainIter;
+        this.testIter = testIter;
+        this.evaluator = evaluator != null ? evaluator : network -> accuracy(network, subsample(testIter));
+        this.maxEpochs = maxEpochs;
+        this.checkpointFile = new File(CHECKPOINT_DIR, name + "-checkpoint.zip");
+        this.bestFile = new File(CHECKPOINT_DIR, name + "-best.zip");
+    }
+
+    /**
+     * Trains, or resumes training, until the maximum number of epochs or early stopping.
+     *
+     * @return the network of the epoch with the best subsample accuracy, with its updater state
+     */
+    public M run() throws IOException {
+        M model = initial;
+        State state = new State();
+        if (checkpointFile.exists()) {
+            model = restore(checkpointFile);
+            model.setListeners(ParallelTraining.listeners(initial));
+            state = ModelSerializer.getObjectFromFile(checkpointFile, STATE_KEY);
+            logger.info("Resuming from {} at epoch {}, minibatch {}, best accuracy {} at epoch {}",
+                    checkpointFile, state.epoch + 1, state.batch, format(state.bestAccuracy), state.bestEpoch + 1);
+        }
+
+        ParallelWrapper wrapper = ParallelTraining.WORKERS > 1 ? ParallelTraining.wrap(model, ParallelTraining.WORKERS) : null;
+        try {
+            while (state.epoch < maxEpochs && state.epoch - (state.bestEpoch + 1) < PATIENCE) {
+                position(state);
+                if (wrapper != null && trainIter != null) {
+                    wrapper.fit(trainIter);
+                } else if (wrapper != null) {
+                    wrapper.fit(multiTrainIter);
+                } else {
+                    fitEpoch(model, state);
+                }
+                state.epoch++;
+                state.batch = 0;
+
+                double accuracy = evaluator.applyAsDouble(model);
+                if (accuracy > state.bestAccuracy) {
+                    state.bestAccuracy = accuracy;
+                    state.bestEpoch = state.epoch - 1;
+                    write(model, null, bestFile);
+                }
+                logger.info("Epoch {}: subsample accuracy {}, best {} at epoch {}", state.epoch, format(accuracy),
+                        format(state.bestAccuracy), state.bestEpoch + 1);
+                write(model, state, checkpointFile);
+            }
+        } finally {
+            if (wrapper != null) {
+                wrapper.close();
+            }
+        }
+        if (state.epoch < maxEpochs) {
+            logger.info("Stopping early after epoch {}, no improvement for {} epochs", state.epoch, PATIENCE);
+        }
+        return bestFile.exists() ? restore(bestFile) : model;
+    }
+
+    /**
+     * Evaluates a network on the first {@link #EVAL_SAMPLES} images of an iterator, e.g. for the training accuracy.
+     */
+    public static Evaluation evaluateSubsample(MultiLayerNetwork model, DataSetIterator iter) {
+        return model.evaluate(subsample(iter));
+    }
+
+    /**
+     * @return the first {@link #EVAL_SAMPLES} images of an iterator, rewound first so that every call scores the
+     * same images
+     */
+    public static DataSetIterator subsample(DataSetIterator iter) {
+        // neither the wrapper nor evaluate() rewinds an iterator that did not run out
+        iter.reset();
+        return new EarlyTerminationDataSetIterator(iter, (EVAL_SAMPLES + iter.batch() - 1) / iter.batch());
+    }
+
+    /**
+     * Deletes the checkpoints, so that the next run starts from scratch.
+     */
+    public void deleteCheckpoints() throws IOException {
+        Files.deleteIfExists(checkpointFile.toPath());
+        Files.deleteIfExists(bestFile.toPath());
+    }
+
+    /**
+     * Stops the threads of the train and test iterators, see {@link CachedDataSetIterator#close()}.
+     */
+    @Override
+    public void close() {
+        CachedDataSetIterator.shutdown(trainIter);
+        CachedDataSetIterator.shutdown(testIter);
+        if (multiTrainIter instanceof MultiTaskIterator) {
+            ((MultiTaskIterator) multiTrainIter).close();
+        }
+    }
+
+    private void position(State state) {
+        if (trainIter instanceof CachedDataSetIterator) {
+            // also after a restart, the augmentations are the ones the epoch would have had
+            ((CachedDataSetIterator) trainIter).seek(state.epoch, state.batch);
+        } else if (trainIter != null) {
+            // other iterators have to read their way back to the minibatch
+            trainIter.reset();
+            for (int i = 0; i < state.batch && trainIter.hasNext(); i++) {
+                trainIter.next();
+            }
+        } else {
+            multiTrainIter.reset();
+            for (int i = 0; i < state.batch && multiTrainIter.hasNext(); i++) {
+                multiTrainIter.next();
+            }
+        }
+    }
+
+    private void fitEpoch(M model, State state) throws IOException {
+        while (trainIter != null ? trainIter.hasNext() : multiTrainIter.hasNext()) {
+            if (trainIter == null) {
+                ((ComputationGraph) model).fit(multiTrainIter.next());
+            } else if (model instanceof MultiLayerNetwork) {
+                ((MultiLayerNetwork) model).fit(trainIter.next());
+            } else {
+                ((ComputationGraph) model).fit(trainIter.next());
+            }
+            state.batch++;
+            if (CHECKPOINT_EVERY > 0 && state.batch % CHECKPOINT_EVERY == 0) {
+                write(model, state, checkpointFile);
+            }
+        }
+        if (model instanceof MultiLayerNetwork) {
+            ((MultiLayerNetwork) model).incrementEpochCount();
+        } else {
+            ((ComputationGraph) model).incrementEpochCount();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private M restore(File file) throws IOException {
+        return (M) (initial instanceof MultiLayerNetwork
+                ? ModelSerializer.restoreMultiLayerNetwork(file, true)
+                : ModelSerializer.restoreComputationGraph(file, true));
+    }
+
+    private static double accuracy(Model model, DataSetIterator iter) {
+        return model instanceof MultiLayerNetwork
+                ? ((MultiLayerNetwork) model).evaluate(iter).accuracy()
+                : ((ComputationGraph) model).evaluate(iter).accuracy();
+    }
+
+    private static void write(Model model, State state, File file) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        // written next to the previous one and moved over it, a crash never leaves a half written checkpoint
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        ModelSerializer.writeModel(model, tmp, true);
+        if (state != null) {
+            ModelSerializer.addObjectToFile(tmp, STATE_KEY, state);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String format(double accuracy) {
+        return String.format(Locale.ROOT, "%.4f", accuracy);
+    }
+
+    /**
+     * Progress stored in a checkpoint next to the network.
+     */
+    private static class State implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        // epochs completed, and minibatches completed in the next one
+        int epoch = 0;
+        int batch = 0;
+        double bestAccuracy = -1;
+        int bestEpoch = -1;
+    }
+}
@@ -0,0 +1,284 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.OpenCVFrameConverter;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Offline demographics of a recorded video: how many people of every age bucket and gender were seen in every
+ * {@code agegender.video.bucketSeconds} (60) of it, instead of boxes drawn on a display.
+ * <p>
+ * The video is split into segments of {@code agegender.video.segmentSeconds} (300, rounded up to whole buckets), and
+ * every segment is decoded and processed by its own thread with its own grabber, detector and {@link FaceTracker}.
+ * Each decoder runs on a single thread, the segments are what runs in parallel. Only every
+ * {@code agegender.video.frameStep}-th (5) frame of the video is analysed. The frames in between are decoded, as
+ * video codecs require, but not converted. The faces of all segments go through a shared {@link InferenceScheduler}.
+ * <p>
+ * A row of the CSV output holds a time bucket, an age bucket, a gender and two counts. {@code people} is the number
+ * of faces tracked in that time bucket, each counted once with its last smoothed prediction in the bucket.
+ * {@code face_detections} is the number of classified faces over the analysed frames. Segments end on bucket
+ * boundaries, so a person is never counted twice in a bucket because of a split.
+ * <p>
+ * Usage: {@code VideoAnalyticsRunner <video file> <output.csv> [threads]}
+ */
+public class VideoAnalyticsRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(VideoAnalyticsRunner.class);
+
+    public static final long BUCKET_SECONDS = Long.getLong("agegender.video.bucketSeconds", 60);
+    public static final long SEGMENT_SECONDS = Long.getLong("agegender.video.segmentSeconds", 300);
+    public static final int FRAME_STEP = Integer.getInteger("agegender.video.frameStep", 5);
+
+    private static final long REPORT_INTERVAL_MS = 10_000;
+    private static final int GENDERS = AgeGenderDetection.Gender.values().length;
+
+    private final InferenceScheduler scheduler;
+    private final String video;
+    private final long lengthMicros;
+    private final double frameRate;
+    private final long bucketMicros = TimeUnit.SECONDS.toMicros(BUCKET_SECONDS);
+
+    private final Map<Long, BucketCounts> counts = new HashMap<>();
+    private final AtomicLong decodedMicros = new AtomicLong();
+    private final AtomicLong framesDecoded = new AtomicLong();
+    private final AtomicLong framesAnalysed = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: VideoAnalyticsRunner <video file> <output.csv> [threads]");
+            System.exit(1);
+        }
+        NativeMemory.configure();
+        File video = new File(args[0]);
+        File outputFile = new File(args[1]);
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        InferenceScheduler scheduler = new InferenceScheduler(AgeGenderPredictor.restore(AgeGenderPredictor.DEFAULT_BATCH_SIZE));
+        try {
+            new VideoAnalyticsRunner(scheduler, video).run(outputFile, threads);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * @param video file readable by FFmpeg, opened once to read its length and frame rate
+     */
+    public VideoAnalyticsRunner(InferenceScheduler scheduler, File video) throws IOException {
+        if (BUCKET_SECONDS < 1 || FRAME_STEP < 1) {
+            throw new IllegalArgumentException("Time buckets of at least 1 s and a frame step of at least 1 required, got "
+                    + BUCKET_SECONDS + " s and " + FRAME_STEP);
+        }
+        this.scheduler = scheduler;
+        this.video = video.getPath();
+        try (FFmpegFrameGrabber probe = new FFmpegFrameGrabber(this.video)) {
+            probe.start();
+            this.lengthMicros = probe.getLengthInTime();
+            this.frameRate = probe.getFrameRate();
+        }
+        if (lengthMicros <= 0 || frameRate <= 0) {
+            throw new IOException("Unable to read the length and frame rate of " + video);
+        }
+    }
+
+    /**
+     * Processes the whole video and writes the counts of every time bucket.
+     *
+     * @param outputFile CSV file written once every segment is done
+     * @param threads    number of segments decoded and processed at once
+     */
+    public void run(File outputFile, int threads) throws IOException, InterruptedException {
+        long segmentMicros = Math.max(1, (SEGMENT_SECONDS + BUCKET_SECONDS - 1) / BUCKET_SECONDS) * bucketMicros;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        int segments = 0;
+        for (long start = 0; start < lengthMicros; start += segmentMicros) {
+            long segmentStart = start;
+            long segmentEnd = Math.min(start + segmentMicros, lengthMicros);
+            executor.execute(() -> process(segmentStart, segmentEnd));
+            segments++;
+        }
+        logger.info("Analysing {} s of {} at {} fps, every {} frames, in {} segments on {} threads",
+                lengthMicros / 1_000_000, video, String.format(Locale.ROOT, "%.2f", frameRate), FRAME_STEP, segments,
+                threads);
+
+        long start = System.currentTimeMillis();
+        executor.shutdown();
+        while (!executor.awaitTermination(REPORT_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+            report(System.currentTimeMillis() - start);
+        }
+        report(System.currentTimeMillis() - start);
+        write(outputFile);
+        logger.info("Counts written to {}", outputFile);
+    }
+
+    private void process(long startMicros, long endMicros) {
+        // consecutive analysed frames are FRAME_STEP frames apart, too far for searching around the previous faces
+        FaceDetector detector = FaceDetector.create(FaceDetector.DEFAULT_BACKEND,
+                new DetectionSettings().setRoiTracking(FRAME_STEP == 1));
+        FaceTracker tracker = new FaceTracker();
+        OpenCVFrameConverter.ToMat converter = new OpenCVFrameConverter.ToMat();
+        Map<Long, BucketCounts> segmentCounts = new HashMap<>();
+        // last prediction of every track seen in the current time bucket
+        Map<Integer, FacePrediction> people = new HashMap<>();
+        long bucket = -1;
+        long position = startMicros;
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(video)) {
+            // the segments already keep every core busy
+            grabber.setVideoOption("threads", "1");
+            grabber.start();
+            if (startMicros > 0) {
+                grabber.setTimestamp(startMicros);
+            }
+            long frameNumber = -1;
+            while (true) {
+                // only frames analysed are converted, the first one tells where the segment starts
+                boolean analyse = frameNumber < 0 || (frameNumber + 1) % FRAME_STEP == 0;
+                Frame frame = grabber.grabFrame(false, true, analyse, false);
+                if (frame == null || frame.timestamp >= endMicros) {
+                    break;
+                }
+                frameNumber = frameNumber < 0 ? Math.round(frame.timestamp * frameRate / 1e6) : frameNumber + 1;
+                framesDecoded.incrementAndGet();
+                decodedMicros.addAndGet(frame.timestamp - position);
+                position = frame.timestamp;
+                if (frameNumber % FRAME_STEP != 0 || frame.image == null) {
+                    continue;
+                }
+
+                if (frame.timestamp / bucketMicros != bucket) {
+                    count(people, segmentCounts, bucket);
+                    bucket = frame.timestamp / bucketMicros;
+                }
+                analyse(converter.convert(frame), detector, tracker,
+                        segmentCounts.computeIfAbsent(bucket, b -> new BucketCounts()), people);
+                framesAnalysed.incrementAndGet();
+            }
+            count(people, segmentCounts, bucket);
+        } catch (Exception e) {
+            logger.error("Error when processing {} from {} s to {} s", video, startMicros / 1_000_000,
+                    endMicros / 1_000_000, e);
+            failures.incrementAndGet();
+        } finally {
+            detector.close();
+            decodedMicros.addAndGet(endMicros - position);
+        }
+
+        synchronized (counts) {
+            segmentCounts.forEach((key, value) -> counts.computeIfAbsent(key, b -> new BucketCounts()).add(value));
+        }
+    }
+
+    private void analyse(Mat mat, FaceDetector detector, FaceTracker tracker, BucketCounts bucketCounts,
+                         Map<Integer, FacePrediction> people) {
+        Map<Rect, Mat> faces = detector.detect(mat);
+        try {
+            List<FaceTracker.Track> toClassify = tracker.update(faces);
+            List<CompletableFuture<FacePrediction>> futures = new ArrayList<>(toClassify.size());
+            for (FaceTracker.Track track : toClassify) {
+                futures.add(scheduler.submit(track.getFace()));
+            }
+            // the faces share the grabber's buffer, so every prediction has to be back before the next grab
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    tracker.record(toClassify.get(i), futures.get(i).join());
+                } catch (CompletionException e) {
+                    logger.debug("No prediction for track {}: {}", toClassify.get(i).getId(), e.getCause().getMessage());
+                }
+            }
+            for (FaceTracker.Track track : tracker.visibleTracks()) {
+                FacePrediction prediction = track.getPrediction();
+                if (prediction != null) {
+                    bucketCounts.detections[prediction.getAgeIndex()][prediction.getGender().ordinal()]++;
+                    people.put(track.getId(), prediction);
+                }
+            }
+        } finally {
+            for (Mat face : faces.values()) {
+                face.close();
+            }
+        }
+    }
+
+    private static void count(Map<Integer, FacePrediction> people, Map<Long, BucketCounts> segmentCounts, long bucket) {
+        if (bucket >= 0) {
+            BucketCounts bucketCounts = segmentCounts.computeIfAbsent(bucket, b -> new BucketCounts());
+            for (FacePrediction prediction : people.values()) {
+                bucketCounts.people[prediction.getAgeIndex()][prediction.getGender().ordinal()]++;
+            }
+        }
+        people.clear();
+    }
+
+    private void write(File outputFile) throws IOException {
+        try (PrintWriter out = new PrintWriter(outputFile, StandardCharsets.UTF_8.name())) {
+            out.println("bucket_start,bucket_end,age,gender,people,face_detections");
+            long buckets = (lengthMicros + bucketMicros - 1) / bucketMicros;
+            for (long bucket = 0; bucket < buckets; bucket++) {
+                BucketCounts bucketCounts = counts.getOrDefault(bucket, new BucketCounts());
+                String start = time(bucket * bucketMicros);
+                String end = time(Math.min((bucket + 1) * bucketMicros, lengthMicros));
+                for (int age = 0; age < AgeGenderDetection.AGES.length; age++) {
+                    for (AgeGenderDetection.Gender gender : AgeGenderDetection.Gender.values()) {
+                        out.printf(Locale.ROOT, "%s,%s,%s,%s,%d,%d%n", start, end, AgeGenderDetection.AGES[age],
+                                gender, bucketCounts.people[age][gender.ordinal()],
+                                bucketCounts.detections[age][gender.ordinal()]);
+                    }
+                }
+            }
+        }
+    }
+
+    private static String time(long micros) {
+        long seconds = micros / 1_000_000;
+        return String.format(Locale.ROOT, "%02d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+
+    private void report(long elapsedMs) {
+        double seconds = Math.max(elapsedMs, 1) / 1000.0;
+        logger.info("Processed {} of {} s of video ({}x real time), {} frames decoded, {} analysed ({} frames/sec), "
+                        + "{} failed segments, inference queue depth {}",
+                decodedMicros.get() / 1_000_000, lengthMicros / 1_000_000,
+                String.format(Locale.ROOT, "%.1f", decodedMicros.get() / 1e6 / seconds),
+                framesDecoded.get(), framesAnalysed.get(),
+                String.format(Locale.ROOT, "%.1f", framesAnalysed.get() / seconds),
+                failures.get(), scheduler.getQueueDepth());
+    }
+
+    /**
+     * Counts of one time bucket, by age bucket and gender.
+     */
+    private static class BucketCounts {
+        final long[][] people = new long[AgeGenderDetection.AGES.length][GENDERS];
+        final long[][] detections = new long[AgeGenderDetection.AGES.length][GENDERS];
+
+        void add(BucketCounts other) {
+            for (int age = 0; age < people.length; age++) {
+                for (int gender = 0; gender < GENDERS; gender++) {
+                    people[age][gender] += other.people[age][gender];
+                    detections[age][gender] += other.detections[age][gender];
+                }
+            }
+        }
+    }
+}
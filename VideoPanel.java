@@ -0,0 +1,94 @@
+package ai.certifai.solution.facial_recognition.GenderAndAgeDetector;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Size;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+import static org.bytedeco.opencv.global.opencv_core.CV_8UC3;
+import static org.bytedeco.opencv.global.opencv_imgproc.INTER_AREA;
+import static org.bytedeco.opencv.global.opencv_imgproc.INTER_LINEAR;
+import static org.bytedeco.opencv.global.opencv_imgproc.resize;
+
+/**
+ * Panel showing video frames, scaled to fit the panel while keeping their aspect ratio.
+ * <p>
+ * Frames are resized by OpenCV into a reused native buffer, or not at all when they already have the displayed
+ * size, and copied straight into the pixel array of a reused {@link BufferedImage} of the same BGR layout. Two such
+ * images are kept: the one being filled and the one {@link #paintComponent} draws, swapped once a frame is complete.
+ * Nothing is allocated per frame unless the panel is resized.
+ * <p>
+ * {@link #showFrame(Mat)} may be called from any thread, painting happens on the event dispatch thread.
+ */
+public class VideoPanel extends JPanel {
+
+    private final Mat resized = new Mat();
+    private final Size size = new Size();
+    private BufferedImage back;
+    private BufferedImage front;
+
+    public VideoPanel() {
+        // the panel paints its own back buffer, a second one in Swing would only add a copy
+        super(null, false);
+        setOpaque(true);
+        setBackground(Color.BLACK);
+    }
+
+    /**
+     * Displays a BGR frame. The frame is not kept, it can be released as soon as this returns.
+     */
+    public void showFrame(Mat frame) {
+        if (frame.type() != CV_8UC3) {
+            throw new IllegalArgumentException("Expected an 8-bit BGR frame, got type " + frame.type());
+        }
+        int panelWidth = getWidth();
+        int panelHeight = getHeight();
+        if (panelWidth <= 0 || panelHeight <= 0 || frame.empty()) {
+            return;
+        }
+
+        // fit the frame into the panel as Thumbnailator did
+        double scale = Math.min((double) panelWidth / frame.cols(), (double) panelHeight / frame.rows());
+        int width = Math.max(1, (int) Math.round(frame.cols() * scale));
+        int height = Math.max(1, (int) Math.round(frame.rows() * scale));
+
+        // concurrent callers take turns on the resize buffer and the back image
+        synchronized (resized) {
+            Mat source = frame;
+            if (width != frame.cols() || height != frame.rows()) {
+                size.width(width).height(height);
+                resize(frame, resized, size, 0, 0, scale < 1 ? INTER_AREA : INTER_LINEAR);
+                source = resized;
+            } else if (!frame.isContinuous()) {
+                frame.copyTo(resized);
+                source = resized;
+            }
+
+            BufferedImage image = back;
+            if (image == null || image.getWidth() != width || image.getHeight() != height) {
+                image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+            }
+            byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            source.data().get(pixels, 0, pixels.length);
+
+            synchronized (this) {
+                back = front;
+                front = image;
+            }
+        }
+        repaint();
+    }
+
+    @Override
+    protected void paintComponent(Graphics graphics) {
+        super.paintComponent(graphics);
+        synchronized (this) {
+            if (front != null) {
+                graphics.drawImage(front, 0, 0, null);
+            }
+        }
+    }
+}